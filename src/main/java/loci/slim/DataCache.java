@@ -0,0 +1,305 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import loci.slim.fit.DataCube;
+import loci.slim.fit.MappedDataCube;
+
+/**
+ * On-disk cache of decoded (and optionally peak-aligned) lifetime data.
+ * Each entry is keyed by the source file's path, modification time and size,
+ * along with the parameters used to load it, and is reopened as a
+ * memory-mapped {@link MappedDataCube}.
+ *
+ * The cache directory and its maximum total size are given by the
+ * slim.cache.dir and slim.cache.limit system properties. Once the limit is
+ * exceeded, the least recently used files are deleted. A limit of zero
+ * disables the cache.
+ */
+public class DataCache {
+
+  // -- Constants --
+
+  /** Identifying string at the start of every cache file. */
+  private static final String MAGIC = "SLIMCUBE";
+
+  /** Cache file format version. */
+  private static final int VERSION = 1;
+
+  /** Size of the cache file header, in bytes. Cell data follows. */
+  private static final int HEADER_SIZE = 4096;
+
+  /** Suffix of cache file names. */
+  private static final String SUFFIX = ".cube";
+
+  /** Suffix of files still being written to the cache. */
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  /** System property naming the directory in which to cache data. */
+  public static final String DIR_PROPERTY = "slim.cache.dir";
+
+  /**
+   * System property giving the maximum total size of the cache files,
+   * in megabytes.
+   */
+  public static final String LIMIT_PROPERTY = "slim.cache.limit";
+
+  /** Default maximum total size of the cache files, in megabytes. */
+  public static final long DEFAULT_LIMIT = 4096;
+
+  // -- Fields --
+
+  /** Cache file for this entry. */
+  protected File file;
+
+  /** Key identifying the source data and load parameters. */
+  protected String key;
+
+  /** Peak alignment of the data most recently loaded or saved. */
+  protected int maxPeak;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a cache entry for the given source file and load parameters.
+   * @param id Source file from which the data is read.
+   * @param align Whether the data is peak-aligned before being cached.
+   */
+  public DataCache(String id, int channels, int height, int width,
+    int timeBins, boolean align) throws IOException
+  {
+    File source = new File(id).getCanonicalFile();
+    key = source.getPath() + "|" + source.lastModified() + "|" +
+      source.length() + "|" + channels + "x" + height + "x" + width + "x" +
+      timeBins + "|" + (align ? "aligned" : "raw") + "|" + VERSION;
+    file = new File(getCacheDir(), digest(key) + SUFFIX);
+  }
+
+  // -- DataCache methods --
+
+  /**
+   * Gets the directory in which cache files are stored: the one named by
+   * the slim.cache.dir system property, or ~/.slimplotter/cache by default.
+   */
+  public static File getCacheDir() {
+    String dir = System.getProperty(DIR_PROPERTY);
+    if (dir != null && dir.length() > 0) return new File(dir);
+    return new File(System.getProperty("user.home"),
+      ".slimplotter" + File.separator + "cache");
+  }
+
+  /**
+   * Gets the maximum total size of the cache files in bytes, as given in
+   * megabytes by the slim.cache.limit system property.
+   */
+  public static long getSizeLimit() {
+    long limit = DEFAULT_LIMIT;
+    String value = System.getProperty(LIMIT_PROPERTY);
+    if (value != null) {
+      try {
+        limit = Long.parseLong(value.trim());
+      }
+      catch (NumberFormatException exc) {
+        SlimPlotter.log("Invalid cache limit: " + value);
+      }
+    }
+    return limit > 0 ? limit << 20 : 0;
+  }
+
+  /** Gets whether the cache is enabled, with a nonzero size limit. */
+  public static boolean isEnabled() { return getSizeLimit() > 0; }
+
+  /**
+   * Deletes the least recently used cache files until their total size is
+   * within the limit, never deleting the given file. Files still being
+   * written are left alone, as are files that cannot be deleted (such as
+   * ones mapped by another process, on some platforms).
+   */
+  public static void trim(File keep) {
+    File[] files = getCacheDir().listFiles();
+    if (files == null) return;
+    long total = 0;
+    for (int i=0; i<files.length; i++) total += files[i].length();
+    long limit = getSizeLimit();
+    if (total <= limit) return;
+
+    // oldest first
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File f1, File f2) {
+        long t1 = f1.lastModified(), t2 = f2.lastModified();
+        return t1 < t2 ? -1 : t1 > t2 ? 1 : 0;
+      }
+    });
+    for (int i=0; i<files.length && total > limit; i++) {
+      File f = files[i];
+      if (f.equals(keep) || f.getName().endsWith(TEMP_SUFFIX)) continue;
+      long length = f.length();
+      if (f.delete()) total -= length;
+    }
+  }
+
+  /** Gets the cache file for this entry. */
+  public File getFile() { return file; }
+
+  /** Gets the key identifying the source data and load parameters. */
+  public String getKey() { return key; }
+
+  /** Gets the peak alignment of the data last loaded or saved. */
+  public int getMaxPeak() { return maxPeak; }
+
+  /**
+   * Maps the cached data, or returns null if there is no valid cache entry.
+   */
+  public DataCube load() throws IOException {
+    if (!file.exists()) return null;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() < HEADER_SIZE) return null;
+      byte[] header = new byte[HEADER_SIZE];
+      raf.readFully(header);
+      DataInputStream in =
+        new DataInputStream(new ByteArrayInputStream(header));
+      byte[] magic = new byte[MAGIC.length()];
+      in.readFully(magic);
+      if (!MAGIC.equals(new String(magic, "US-ASCII"))) return null;
+      if (in.readInt() != VERSION) return null;
+      if (!key.equals(in.readUTF())) return null;
+      int channels = in.readInt();
+      int rows = in.readInt();
+      int cols = in.readInt();
+      int bins = in.readInt();
+      int cellSize = in.readInt();
+      boolean little = in.readBoolean();
+      int peak = in.readInt();
+      if (little != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)) {
+        return null;
+      }
+      DataCube cube = new MappedDataCube(raf.getChannel(), HEADER_SIZE,
+        channels, rows, cols, bins, cellSize == 2);
+      maxPeak = peak;
+      touch(file);
+      return cube;
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Writes the given data to the cache, then deletes the least recently used
+   * entries as needed to keep the cache within its size limit. The entry is
+   * written to a temporary file first, so that an interrupted save never
+   * leaves a partial entry.
+   */
+  public void save(DataCube data, int maxPeak) throws IOException {
+    int cellSize = data.isNarrow() ? 2 : 4;
+    long size = HEADER_SIZE + (long) data.getChannels() * data.getRows() *
+      data.getCols() * data.getBins() * cellSize;
+    if (size > getSizeLimit()) {
+      throw new IOException("Data exceeds cache limit of " +
+        (getSizeLimit() >> 20) + " MB");
+    }
+    File dir = file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create cache directory: " + dir);
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.write(MAGIC.getBytes("US-ASCII"));
+    out.writeInt(VERSION);
+    out.writeUTF(key);
+    out.writeInt(data.getChannels());
+    out.writeInt(data.getRows());
+    out.writeInt(data.getCols());
+    out.writeInt(data.getBins());
+    out.writeInt(cellSize);
+    out.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+    out.writeInt(maxPeak);
+    out.close();
+    if (bytes.size() > HEADER_SIZE) {
+      throw new IOException("Cache key too long: " + key);
+    }
+    byte[] header = new byte[HEADER_SIZE];
+    System.arraycopy(bytes.toByteArray(), 0, header, 0, bytes.size());
+
+    File temp = File.createTempFile("slim", SUFFIX + TEMP_SUFFIX, dir);
+    FileOutputStream fout = new FileOutputStream(temp);
+    boolean success = false;
+    try {
+      fout.write(header);
+      data.write(fout.getChannel());
+      fout.close();
+      file.delete();
+      success = temp.renameTo(file);
+      if (!success) throw new IOException("Cannot rename " + temp);
+      this.maxPeak = maxPeak;
+    }
+    finally {
+      fout.close();
+      if (!success) temp.delete();
+    }
+    trim(file);
+  }
+
+  // -- Helper methods --
+
+  /** Marks the given cache file as just used, for eviction purposes. */
+  static void touch(File f) {
+    f.setLastModified(System.currentTimeMillis());
+  }
+
+  /** Computes a hexadecimal digest of the given key, for use as a name. */
+  static String digest(String key) throws IOException {
+    byte[] hash;
+    try {
+      hash = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+    }
+    catch (NoSuchAlgorithmException exc) {
+      return Integer.toHexString(key.hashCode());
+    }
+    StringBuffer sb = new StringBuffer();
+    for (int i=0; i<hash.length; i++) {
+      int b = hash[i] & 0xff;
+      if (b < 0x10) sb.append('0');
+      sb.append(Integer.toHexString(b));
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,252 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import loci.slim.fit.CurveCollection;
+import loci.slim.fit.ICurveFitter;
+
+/**
+ * On-disk store of per-pixel curve fits, so that a later session on the
+ * same data can resume refinement rather than starting from scratch.
+ * Each entry is keyed by a {@link DataCache} key along with the fit
+ * parameters, and holds every full resolution curve of each channel:
+ * its parameters, RCSE, first and last bins and iteration count,
+ * plus the fixed parameter flags of the channel.
+ */
+public class FitStore {
+
+  // -- Constants --
+
+  /** Identifying string at the start of every store file. */
+  private static final String MAGIC = "SLIMFITS";
+
+  /** Store file format version. */
+  private static final int VERSION = 1;
+
+  /** Suffix of store file names. */
+  private static final String SUFFIX = ".fits";
+
+  // -- Fields --
+
+  /** Store file for this entry. */
+  protected File file;
+
+  /** Key identifying the source data and fit parameters. */
+  protected String key;
+
+  /**
+   * Iterations performed on each curve in earlier sessions, dimensioned
+   * [channel][row][column], or null for channels that were not restored.
+   */
+  protected int[][][] pastIterations;
+
+  // -- Constructor --
+
+  /**
+   * Constructs a store entry for the given cached data and fit parameters.
+   * @param cache Cache entry of the data being fitted.
+   * @param fitterClass Type of curve fitter in use.
+   * @param components Number of exponentials being fitted.
+   * @param binRadius Radius of the bins summed into each curve.
+   * @param first First bin of each curve to fit.
+   * @param last Last bin of each curve to fit.
+   */
+  public FitStore(DataCache cache, Class<?> fitterClass, int components,
+    int binRadius, int first, int last) throws IOException
+  {
+    key = cache.getKey() + "|" + fitterClass.getName() + "|" + components +
+      "|" + binRadius + "|" + first + "-" + last + "|" + VERSION;
+    file = new File(DataCache.getCacheDir(), DataCache.digest(key) + SUFFIX);
+  }
+
+  // -- FitStore methods --
+
+  /** Gets the store file for this entry. */
+  public File getFile() { return file; }
+
+  /**
+   * Gets the total iterations performed in earlier sessions on the curves
+   * of the given channel, or 0 if the channel was not restored.
+   */
+  public int getIterations(int c) {
+    if (pastIterations == null || pastIterations[c] == null) return 0;
+    int[][] iter = pastIterations[c];
+    int total = 0;
+    for (int y=0; y<iter.length; y++) {
+      for (int x=0; x<iter[y].length; x++) total += iter[y][x];
+    }
+    return total;
+  }
+
+  /**
+   * Restores the full resolution curves of each channel from the store.
+   * The curves must already have the stored number of components.
+   *
+   * @return whether each channel was restored,
+   *   or null if there is no valid store entry
+   */
+  public boolean[] load(CurveCollection[] curves) throws IOException {
+    if (!file.exists()) return null;
+    DataInputStream in = new DataInputStream(
+      new BufferedInputStream(new FileInputStream(file)));
+    try {
+      byte[] magic = new byte[MAGIC.length()];
+      in.readFully(magic);
+      if (!MAGIC.equals(new String(magic, "US-ASCII"))) return null;
+      if (in.readInt() != VERSION) return null;
+      if (!key.equals(in.readUTF())) return null;
+      int channels = in.readInt();
+      int rows = in.readInt();
+      int cols = in.readInt();
+      int components = in.readInt();
+      if (channels != curves.length) return null;
+
+      boolean[] restored = new boolean[channels];
+      int[][][] iterations = new int[channels][][];
+      double[][][] curve = new double[rows * cols][components][3];
+      int[][] iter = new int[rows][cols];
+      for (int c=0; c<channels; c++) {
+        if (!in.readBoolean()) continue;
+        boolean[][] fixed = new boolean[components][3];
+        for (int i=0; i<components; i++) {
+          for (int j=0; j<3; j++) fixed[i][j] = in.readBoolean();
+        }
+        // read the whole channel before touching any of its curves
+        ICurveFitter[][] cf = curves[c].getCurves(0);
+        boolean match = cf.length == rows && cf[0].length == cols &&
+          cf[0][0].getComponentCount() == components;
+        for (int y=0, p=0; y<rows; y++) {
+          for (int x=0; x<cols; x++, p++) {
+            int first = in.readInt();
+            int last = in.readInt();
+            iter[y][x] = in.readInt();
+            in.readDouble(); // RCSE is recomputed from the curve
+            for (int i=0; i<components; i++) {
+              for (int j=0; j<3; j++) curve[p][i][j] = in.readDouble();
+            }
+            if (match && (cf[y][x].getFirst() != first ||
+              cf[y][x].getLast() != last))
+            {
+              match = false;
+            }
+          }
+        }
+        if (!match) continue;
+        curves[c].setFixed(fixed);
+        for (int y=0, p=0; y<rows; y++) {
+          for (int x=0; x<cols; x++, p++) cf[y][x].setCurve(curve[p]);
+        }
+        restored[c] = true;
+        iterations[c] = iter;
+        iter = new int[rows][cols];
+      }
+      pastIterations = iterations;
+      DataCache.touch(file);
+      return restored;
+    }
+    finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes the full resolution curves of each channel to the store, then
+   * trims the cache to its size limit. The entry is written to a temporary
+   * file first, so that an interrupted save never leaves a partial entry.
+   *
+   * @param curves Curves of each channel.
+   * @param complete Whether the initial fit of each channel is complete;
+   *   only complete channels are stored.
+   */
+  public void save(CurveCollection[] curves, boolean[] complete)
+    throws IOException
+  {
+    File dir = file.getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create cache directory: " + dir);
+    }
+    int rows = curves[0].getNumRows();
+    int cols = curves[0].getNumCols();
+    int components = curves[0].getCurves(0)[0][0].getComponentCount();
+
+    File temp = File.createTempFile("slim", SUFFIX + ".tmp", dir);
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(temp)));
+    boolean success = false;
+    try {
+      out.write(MAGIC.getBytes("US-ASCII"));
+      out.writeInt(VERSION);
+      out.writeUTF(key);
+      out.writeInt(curves.length);
+      out.writeInt(rows);
+      out.writeInt(cols);
+      out.writeInt(components);
+      for (int c=0; c<curves.length; c++) {
+        out.writeBoolean(complete[c]);
+        if (!complete[c]) continue;
+        boolean[][] fixed = curves[c].getFixed();
+        for (int i=0; i<components; i++) {
+          for (int j=0; j<3; j++) out.writeBoolean(fixed[i][j]);
+        }
+        ICurveFitter[][] cf = curves[c].getCurves(0);
+        int[][] past = pastIterations == null ? null : pastIterations[c];
+        for (int y=0; y<rows; y++) {
+          for (int x=0; x<cols; x++) {
+            ICurveFitter f = cf[y][x];
+            int iter = f.getIterations();
+            if (past != null) iter += past[y][x];
+            out.writeInt(f.getFirst());
+            out.writeInt(f.getLast());
+            out.writeInt(iter);
+            out.writeDouble(f.getReducedChiSquaredError());
+            double[][] curve = f.getCurve();
+            for (int i=0; i<components; i++) {
+              for (int j=0; j<3; j++) out.writeDouble(curve[i][j]);
+            }
+          }
+        }
+      }
+      out.close();
+      file.delete();
+      success = temp.renameTo(file);
+      if (!success) throw new IOException("Cannot rename " + temp);
+    }
+    finally {
+      out.close();
+      if (!success) temp.delete();
+    }
+    DataCache.trim(file);
+  }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim;
+
+/**
+ * Runs plot requests one at a time on a single worker thread. Requests
+ * arriving while another is pending are collapsed into it, keeping the
+ * latest probe mode and the union of the recalc, rescale and refit flags.
+ * A new request also asks the plot in progress to cancel, which it does
+ * cooperatively by polling {@link #isCanceled()}; its flags are carried
+ * over into the pending request, since its work may be left unfinished.
+ */
+public class PlotScheduler implements Runnable {
+
+  // -- Fields --
+
+  /** Plotting routine, run on the worker thread for each request. */
+  protected Runnable plotter;
+
+  /** Worker thread, started with the first request. */
+  private Thread worker;
+
+  /** Whether a request is waiting to be plotted. */
+  private boolean pending;
+
+  /** Flags of the pending request. */
+  private boolean probe, recalc, rescale, refit;
+
+  /** Whether a plot is in progress. */
+  private boolean running;
+
+  /** Flags of the plot in progress. */
+  private boolean curProbe, curRecalc, curRescale, curRefit;
+
+  /** Whether the plot in progress has been superseded. */
+  private volatile boolean canceled;
+
+  // -- Constructor --
+
+  /** Constructs a scheduler that runs the given routine for each plot. */
+  public PlotScheduler(Runnable plotter) {
+    this.plotter = plotter;
+  }
+
+  // -- PlotScheduler methods --
+
+  /** Requests a plot with the given flags. */
+  public synchronized void request(boolean probe,
+    boolean recalc, boolean rescale, boolean refit)
+  {
+    if (!pending) {
+      // start afresh, or from the flags of the plot about to be canceled
+      this.recalc = running && curRecalc;
+      this.rescale = running && curRescale;
+      this.refit = running && curRefit;
+    }
+    this.probe = probe;
+    this.recalc |= recalc;
+    this.rescale |= rescale;
+    this.refit |= refit;
+    pending = true;
+    if (running) canceled = true;
+    if (worker == null) {
+      worker = new Thread(this, "Plotter");
+      worker.setDaemon(true);
+      worker.start();
+    }
+    notifyAll();
+  }
+
+  /** Gets whether the plot in progress has been superseded. */
+  public boolean isCanceled() { return canceled; }
+
+  /** Gets whether the plot in progress is of the per-pixel probe. */
+  public boolean isProbe() { return curProbe; }
+
+  /** Gets whether the plot in progress recalculates the samples. */
+  public boolean isRecalc() { return curRecalc; }
+
+  /** Gets whether the plot in progress rescales the axes. */
+  public boolean isRescale() { return curRescale; }
+
+  /** Gets whether the plot in progress refits the curves. */
+  public boolean isRefit() { return curRefit; }
+
+  // -- Runnable methods --
+
+  public void run() {
+    while (true) {
+      synchronized (this) {
+        while (!pending) {
+          try { wait(); }
+          catch (InterruptedException exc) { return; }
+        }
+        curProbe = probe;
+        curRecalc = recalc;
+        curRescale = rescale;
+        curRefit = refit;
+        pending = false;
+        running = true;
+        canceled = false;
+      }
+      try {
+        plotter.run();
+      }
+      catch (RuntimeException exc) { exc.printStackTrace(); }
+      finally {
+        synchronized (this) {
+          running = false;
+        }
+      }
+    }
+  }
+
+}
@@ -32,6 +32,13 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.swing.BoxLayout;
 import javax.swing.ButtonGroup;
@@ -55,8 +62,13 @@ import loci.formats.Modulo;
 import loci.slim.fit.CurveCollection;
 import loci.slim.fit.CurveEvent;
 import loci.slim.fit.CurveListener;
+import loci.slim.fit.DataCube;
+import loci.slim.fit.FastLMCurveFitter;
 import loci.slim.fit.GACurveFitter;
+import loci.slim.fit.ICurveFitter;
 import loci.slim.fit.LMCurveFitter;
+import loci.slim.fit.RLDCurveFitter;
+import loci.slim.fit.Workers;
 
 /**
  * Data structure for housing raw experimental data, as well as various
@@ -73,11 +85,14 @@ public class SlimData implements ActionListener, CurveListener {
   // -- Fields --
 
   /** Actual data values, dimensioned [channel][row][column][bin]. */
-  protected int[][][][] data;
+  protected DataCube data;
 
   /** Per-pixel curve estimates, dimensioned [channels]. */
   protected CurveCollection[] curves;
 
+  /** Store of per-pixel curve fits kept between sessions, or null. */
+  protected FitStore fits;
+
   // data parameters
   protected int width, height;
   protected int channels, timeBins;
@@ -86,7 +101,7 @@ public class SlimData implements ActionListener, CurveListener {
 
   // fit parameters
   protected int numExp;
-  protected Class curveFitterClass;
+  protected Class<? extends ICurveFitter> curveFitterClass;
   protected boolean allowCurveFit;
   protected int binRadius;
   protected int cutBins;
@@ -103,14 +118,16 @@ public class SlimData implements ActionListener, CurveListener {
   private JTextField wField, hField, tField, cField;
   private JTextField trField, wlField, sField;
   private JTextField fitField;
-  private JRadioButton gaChoice, lmChoice, noChoice;
+  private JRadioButton gaChoice, lmChoice, fastChoice, rldChoice, noChoice;
   private JTextField binField;
   private JCheckBox alignBox, cutBox;
   private JCheckBox fwhmBox;
 
   // GUI components for reporting progress
   private ProgressMonitor progress;
-  private int progressBase, progressInc;
+
+  /** Fraction of binning completed, for each curve collection. */
+  private Hashtable<Object, Double> curveProgress;
 
   // -- Constructor --
 
@@ -143,10 +160,6 @@ public class SlimData implements ActionListener, CurveListener {
         lifetimeIndex = i;
       }
     }
-    boolean little = reader.isLittleEndian();
-    int pixelType = reader.getPixelType();
-    int bpp = FormatTools.getBytesPerPixel(pixelType);
-    boolean floating = FormatTools.isFloatingPoint(pixelType);
 
     Number timeBase = (Number) reader.getGlobalMetadata().get("time base");
     timeRange = timeBase == null ? Float.NaN : timeBase.floatValue();
@@ -163,54 +176,42 @@ public class SlimData implements ActionListener, CurveListener {
     // progress estimate:
     // * Reading data - 48%
     // * Adjusting peaks - 2%
-    // * Subsampling data - 50%
-
-    // read pixel data and convert to unsigned shorts
-    progress.setNote("Reading data");
-    byte[] plane = new byte[bpp * height * width];
-    data = new int[channels][height][width][timeBins];
-    int imageCount = reader.getImageCount();
-    for (int i=0; i<imageCount; i++) {
-      int[] zct = reader.getZCTCoords(i);
-      if (zct[0] != 0 || zct[2] != 0) continue; // process only first Z and T
-      int[] sub = FormatTools.rasterToPosition(cLengths, zct[1]);
-      int c = spectraIndex < 0 ? 0 : sub[spectraIndex];
-      int t = lifetimeIndex < 0 ? 0 : sub[lifetimeIndex];
-      reader.openBytes(i, plane, 0, 0, width, height);
-      for (int y=0; y<height; y++) {
-        for (int x=0; x<width; x++) {
-          int index = bpp * (y * width + x);
-          int val;
-          if (pixelType == FormatTools.FLOAT) {
-            val = (int) DataTools.bytesToFloat(plane, index, bpp, little);
-          }
-          else if (pixelType == FormatTools.DOUBLE) {
-            val = (int) DataTools.bytesToDouble(plane, index, bpp, little);
-          }
-          else if (!floating) {
-            val = DataTools.bytesToInt(plane, index, bpp, little);
-          }
-          else {
-            throw new FormatException("Unsupported pixel type: " +
-              FormatTools.getPixelTypeString(pixelType));
-          }
-          data[c][y][x][t] = val;
-        }
+    // * Binning data - 50%
+
+    // reuse previously decoded data, if available
+    boolean align = allowCurveFit && maxPeak == 0;
+    DataCache cache = null;
+    if (DataCache.isEnabled()) {
+      try {
+        cache = new DataCache(id, channels, height, width, timeBins, align);
+        data = cache.load();
+      }
+      catch (IOException exc) {
+        SlimPlotter.log("Cannot read data cache: " + exc.getMessage());
       }
-      SlimPlotter.setProgress(progress, 0, 480, (float) (i + 1) / imageCount);
+    }
+    boolean cached = data != null;
+    if (cached) {
+      SlimPlotter.log("Using cached data from " + cache.getFile());
+      if (align) maxPeak = cache.getMaxPeak();
+      SlimPlotter.setProgress(progress, 0, 500, 1);
+    }
+    else {
+      // read pixel data and convert to unsigned shorts
+      progress.setNote("Reading data");
+      data = new DataCube(channels, height, width, timeBins, true);
+      readData(reader, cLengths, spectraIndex, lifetimeIndex);
     }
     reader.close();
 
     // adjust peaks
-    if (allowCurveFit && maxPeak == 0) {
+    if (align && !cached) {
       progress.setNote("Adjusting peaks");
       int[] peaks = new int[channels];
       for (int c=0; c<channels; c++) {
         int[] sum = new int[timeBins];
         for (int h=0; h<height; h++) {
-          for (int w=0; w<width; w++) {
-            for (int t=0; t<timeBins; t++) sum[t] += data[c][h][w][t];
-          }
+          for (int w=0; w<width; w++) data.addCurve(c, h, w, sum);
         }
         int peak = 0, ndx = 0;
         for (int t=0; t<timeBins; t++) {
@@ -231,14 +232,7 @@ public class SlimData implements ActionListener, CurveListener {
       for (int c=0; c<channels; c++) {
         int shift = maxPeak - peaks[c];
         if (shift > 0) {
-          for (int h=0; h<height; h++) {
-            for (int w=0; w<width; w++) {
-              for (int t=timeBins-1; t>=shift; t--) {
-                data[c][h][w][t] = data[c][h][w][t - shift];
-              }
-              for (int t=shift-1; t>=0; t--) data[c][h][w][t] = 0;
-            }
-          }
+          data.shift(c, shift);
           SlimPlotter.log("\tChannel #" + (c + 1) + ": tmax = " + peaks[c] +
             " (shifting by " + shift + ")");
         }
@@ -247,21 +241,54 @@ public class SlimData implements ActionListener, CurveListener {
       }
     }
 
-    // construct subsampled per-pixel curve estimate data
+    // save decoded data for next time
+    if (!cached && cache != null) {
+      progress.setNote("Caching data");
+      try {
+        cache.save(data, maxPeak);
+      }
+      catch (IOException exc) {
+        SlimPlotter.log("Cannot write data cache: " + exc.getMessage());
+      }
+    }
+
+    // construct binned per-pixel curve estimate data; subsamplings
+    // are computed later, as the renderers first need them
     if (allowCurveFit) {
       curves = new CurveCollection[channels];
-      progressInc = 500 / channels;
-      for (int c=0; c<channels; c++) {
-        if (channels == 1) progress.setNote("Subsampling data");
-        else progress.setNote("Subsampling ch. " + (c + 1) + "/" + channels);
-        curves[c] = new CurveCollection(data[c],
-          curveFitterClass, binRadius, maxPeak, timeBins - 1 - cutBins);
-        curves[c].addCurveListener(this);
-        progressBase = 500 + 500 * c / channels;
-        curves[c].computeCurves();
+      curveProgress = new Hashtable<Object, Double>();
+      if (channels == 1) progress.setNote("Binning data");
+      else progress.setNote("Binning " + channels + " channels");
+      // bin several channels at once, dividing the threads among them
+      int threads = Workers.getDefaultThreadCount();
+      int concurrent = Math.min(threads, channels);
+      final int threadsPerChannel = Math.max(1, threads / concurrent);
+      final AtomicInteger nextChannel = new AtomicInteger();
+      Workers.runPooled(new Runnable() {
+        public void run() {
+          while (true) {
+            int c = nextChannel.getAndIncrement();
+            if (c >= channels) break;
+            curves[c] = new CurveCollection(data, c, curveFitterClass,
+              binRadius, maxPeak, timeBins - 1 - cutBins,
+              SlimData.this, threadsPerChannel);
+            curves[c].removeCurveListener(SlimData.this);
+          }
+        }
+      }, concurrent);
+      curveProgress = null;
+
+      // fits from an earlier session are restored along with the renderers
+      if (cache != null) {
+        try {
+          fits = new FitStore(cache, curveFitterClass, numExp, binRadius,
+            maxPeak, timeBins - 1 - cutBins);
+        }
+        catch (IOException exc) {
+          SlimPlotter.log("Cannot access fit store: " + exc.getMessage());
+        }
       }
     }
-    progressBase = 1000;
   }
 
   // -- SlimData methods --
@@ -291,6 +318,10 @@ public class SlimData implements ActionListener, CurveListener {
     curveFitterClass = null;
     if (gaChoice.isSelected()) curveFitterClass = GACurveFitter.class;
     else if (lmChoice.isSelected()) curveFitterClass = LMCurveFitter.class;
+    else if (fastChoice.isSelected()) {
+      curveFitterClass = FastLMCurveFitter.class;
+    }
+    else if (rldChoice.isSelected()) curveFitterClass = RLDCurveFitter.class;
     allowCurveFit = !noChoice.isSelected();
     binRadius = parse(binField.getText(), binRadius);
     maxPeak = alignBox.isSelected() ? 0 : -1;
@@ -303,12 +334,23 @@ public class SlimData implements ActionListener, CurveListener {
 
   // -- CurveListener methods --
 
-  /** Handles curve collection computation progress. */
-  public void curveChanged(CurveEvent e) {
+  /**
+   * Handles curve collection computation progress, which may be reported by
+   * several collections at once from different threads.
+   */
+  public synchronized void curveChanged(CurveEvent e) {
     String message = e.getMessage();
     if (message != null) progress.setNote(message);
-    SlimPlotter.setProgress(progress, progressBase, progressInc,
-      (double) e.getValue() / e.getMaximum());
+    if (curveProgress == null) return;
+    curveProgress.put(e.getSource(),
+      Double.valueOf((double) e.getValue() / e.getMaximum()));
+    double total = 0;
+    for (Enumeration<Double> en=curveProgress.elements();
+      en.hasMoreElements();)
+    {
+      total += en.nextElement().doubleValue();
+    }
+    SlimPlotter.setProgress(progress, 500, 500, total / channels);
   }
 
   // -- Utility methods --
@@ -340,6 +382,176 @@ public class SlimData implements ActionListener, CurveListener {
 
   // -- Helper methods --
 
+  /**
+   * Reads pixel data into the data cube. The calling thread reads raw
+   * planes and feeds them to threads of the shared worker pool, which
+   * convert them into the cube.
+   */
+  private void readData(final IFormatReader reader, final int[] cLengths,
+    final int spectraIndex, final int lifetimeIndex)
+    throws FormatException, IOException
+  {
+    final boolean little = reader.isLittleEndian();
+    final int pixelType = reader.getPixelType();
+    final int bpp = FormatTools.getBytesPerPixel(pixelType);
+    if (FormatTools.isFloatingPoint(pixelType) &&
+      pixelType != FormatTools.FLOAT && pixelType != FormatTools.DOUBLE)
+    {
+      throw new FormatException("Unsupported pixel type: " +
+        FormatTools.getPixelTypeString(pixelType));
+    }
+
+    // determine which planes to read
+    int imageCount = reader.getImageCount();
+    final int[] planes = new int[imageCount];
+    int count = 0;
+    for (int i=0; i<imageCount; i++) {
+      int[] zct = reader.getZCTCoords(i);
+      if (zct[0] != 0 || zct[2] != 0) continue; // process only first Z and T
+      planes[count++] = i;
+    }
+    final int total = count;
+    if (total == 0) return;
+
+    final int threads = Math.max(1,
+      Math.min(Workers.getDefaultThreadCount(), total));
+    final BlockingQueue<Plane> full =
+      new ArrayBlockingQueue<Plane>(2 * threads);
+    final BlockingQueue<Plane> free =
+      new ArrayBlockingQueue<Plane>(2 * threads);
+    for (int i=0; i<2*threads; i++) {
+      free.add(new Plane(new byte[bpp * height * width]));
+    }
+    final ReadWriteLock lock = new ReentrantReadWriteLock();
+    final AtomicInteger decoded = new AtomicInteger();
+    final Throwable[] failure = new Throwable[1];
+
+    // the calling thread reads planes, handing them off to pooled workers
+    final Thread caller = Thread.currentThread();
+    Workers.runPooled(new Runnable() {
+      public void run() {
+        if (Thread.currentThread() != caller) {
+          decodePlanes(full, free, lock, decoded, failure, total,
+            little, pixelType, bpp);
+          return;
+        }
+        try {
+          for (int i=0; i<total && failure[0] == null; i++) {
+            Plane plane = free.take();
+            int[] zct = reader.getZCTCoords(planes[i]);
+            int[] sub = FormatTools.rasterToPosition(cLengths, zct[1]);
+            plane.c = spectraIndex < 0 ? 0 : sub[spectraIndex];
+            plane.t = lifetimeIndex < 0 ? 0 : sub[lifetimeIndex];
+            reader.openBytes(planes[i], plane.bytes, 0, 0, width, height);
+            full.put(plane);
+          }
+        }
+        catch (InterruptedException exc) { caller.interrupt(); }
+        catch (FormatException exc) { fail(failure, exc); }
+        catch (IOException exc) { fail(failure, exc); }
+        finally {
+          // signal workers to stop, even if interrupted meanwhile
+          boolean interrupted = Thread.interrupted();
+          for (int i=0; i<threads; i++) {
+            while (true) {
+              try {
+                full.put(new Plane(null));
+                break;
+              }
+              catch (InterruptedException exc) { interrupted = true; }
+            }
+          }
+          if (interrupted) caller.interrupt();
+        }
+      }
+    }, threads + 1);
+    Throwable t = failure[0];
+    if (t instanceof RuntimeException) throw (RuntimeException) t;
+    if (t instanceof Error) throw (Error) t;
+    if (t instanceof FormatException) throw (FormatException) t;
+    if (t instanceof IOException) throw (IOException) t;
+    if (t != null) throw new FormatException(t);
+  }
+
+  /**
+   * Converts raw planes from the given queue into the data cube until a
+   * plane without bytes arrives, recycling each converted plane. After a
+   * failure, keeps draining the queue so that the reader never blocks.
+   */
+  private void decodePlanes(BlockingQueue<Plane> full,
+    BlockingQueue<Plane> free, ReadWriteLock lock, AtomicInteger decoded,
+    Throwable[] failure, int total, boolean little, int pixelType, int bpp)
+  {
+    int[] values = new int[height * width];
+    while (true) {
+      Plane plane;
+      try { plane = full.take(); }
+      catch (InterruptedException exc) { return; }
+      if (plane.bytes == null) break;
+      try {
+        if (failure[0] == null) {
+          convert(plane, values, lock, little, pixelType, bpp);
+        }
+      }
+      catch (Throwable t) { fail(failure, t); }
+      free.add(plane);
+      int done = decoded.incrementAndGet();
+      synchronized (progress) {
+        SlimPlotter.setProgress(progress, 0, 480, (float) done / total);
+      }
+    }
+  }
+
+  /** Records the given failure, unless an earlier one was recorded. */
+  private static void fail(Throwable[] failure, Throwable t) {
+    synchronized (failure) {
+      if (failure[0] == null) failure[0] = t;
+    }
+  }
+
+  /** Converts the given plane's raw bytes into the data cube. */
+  private void convert(Plane plane, int[] values, ReadWriteLock lock,
+    boolean little, int pixelType, int bpp)
+  {
+    byte[] bytes = plane.bytes;
+    int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+    for (int i=0; i<values.length; i++) {
+      int index = bpp * i;
+      int val;
+      if (pixelType == FormatTools.FLOAT) {
+        val = (int) DataTools.bytesToFloat(bytes, index, bpp, little);
+      }
+      else if (pixelType == FormatTools.DOUBLE) {
+        val = (int) DataTools.bytesToDouble(bytes, index, bpp, little);
+      }
+      else val = DataTools.bytesToInt(bytes, index, bpp, little);
+      values[i] = val;
+      if (val < min) min = val;
+      if (val > max) max = val;
+    }
+
+    // widening reallocates the cube, so it must not overlap any writes
+    if (!data.fits(min) || !data.fits(max)) {
+      lock.writeLock().lock();
+      try {
+        if (data.isNarrow()) data.widen();
+      }
+      finally {
+        lock.writeLock().unlock();
+      }
+    }
+    lock.readLock().lock();
+    try {
+      int c = plane.c, t = plane.t;
+      for (int y=0, i=0; y<height; y++) {
+        for (int x=0; x<width; x++) data.set(c, y, x, t, values[i++]);
+      }
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+
   private void showParamDialog() {
     paramDialog = new JDialog((Frame) null, TITLE, true);
     JPanel paramPane = new JPanel();
@@ -359,15 +571,27 @@ public class SlimData implements ActionListener, CurveListener {
     boolean fitEnabled = timeBins >= 16;
     gaChoice = new JRadioButton("Genetic", fitEnabled);
     lmChoice = new JRadioButton("LM");
+    fastChoice = new JRadioButton("Fast LM");
+    fastChoice.setToolTipText("<html>Levenberg-Marquardt fitting " +
+      "specialized for exponential curves,<br>without per-pixel memory " +
+      "allocation.</html>");
+    rldChoice = new JRadioButton("RLD");
+    rldChoice.setToolTipText("<html>Rapid lifetime determination: " +
+      "closed-form lifetimes in a single pass,<br>without iterative " +
+      "refinement. Suited to quick previews.</html>");
     noChoice = new JRadioButton("None", !fitEnabled);
     ButtonGroup group = new ButtonGroup();
     group.add(gaChoice);
     group.add(lmChoice);
+    group.add(fastChoice);
+    group.add(rldChoice);
     group.add(noChoice);
     JPanel algPane = new JPanel();
     algPane.setLayout(new BoxLayout(algPane, BoxLayout.X_AXIS));
     algPane.add(gaChoice);
     algPane.add(lmChoice);
+    algPane.add(fastChoice);
+    algPane.add(rldChoice);
     //algPane.add(noChoice);
     paramPane.add(algPane);
     paramPane.add(noChoice);
@@ -438,4 +662,14 @@ public class SlimData implements ActionListener, CurveListener {
 		}
 		return new String[] { FormatTools.CHANNEL };
 	}
+
+  // -- Helper classes --
+
+  /** Raw bytes of one image plane, along with its position in the cube. */
+  private static class Plane {
+    private byte[] bytes;
+    private int c, t;
+    private Plane(byte[] bytes) { this.bytes = bytes; }
+  }
+
 }
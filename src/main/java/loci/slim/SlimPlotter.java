@@ -42,6 +42,7 @@ import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
@@ -51,6 +52,10 @@ import java.io.PrintWriter;
 import java.rmi.RemoteException;
 import java.util.Arrays;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
@@ -66,6 +71,7 @@ import javax.swing.ProgressMonitor;
 import javax.swing.SpringLayout;
 import javax.swing.SwingConstants;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.TitledBorder;
 import javax.swing.event.ChangeEvent;
@@ -76,8 +82,13 @@ import javax.swing.text.Document;
 
 import loci.formats.gui.ExtensionFileFilter;
 import loci.slim.fit.CurveCollection;
+import loci.slim.fit.CurveTile;
+import loci.slim.fit.GACurveFitter;
+import loci.slim.fit.IBatchCurveFitter;
 import loci.slim.fit.ICurveFitter;
 import loci.slim.fit.LMCurveFitter;
+import loci.slim.fit.RegionSums;
+import loci.slim.fit.Workers;
 import loci.visbio.util.BreakawayPanel;
 import loci.visbio.util.OutputConsole;
 import visad.AxisScale;
@@ -123,6 +134,12 @@ public class SlimPlotter implements ActionListener, ChangeListener,
   /** Number of iterations to perform for regional lifetime curve fitting. */
   private static final int NUM_ITERATIONS = 250;
 
+  /** Milliseconds between progress updates while exporting. */
+  private static final int EXPORT_REFRESH = 100;
+
+  /** Number of recently probed pixels whose samples are kept. */
+  private static final int PROBE_CACHE_SIZE = 64;
+
   /** Default orientation for 3D decay curves display. */
   private static final double[] MATRIX_3D = {
     0.2821, 0.1503, -0.0201, 0.0418,
@@ -153,6 +170,30 @@ public class SlimPlotter implements ActionListener, ChangeListener,
   /** Current binned data values, dimensioned [channels * timeBins]. */
   private float[] samps;
 
+  /** Summed histograms of the current region, for each channel. */
+  private RegionSums regionSums;
+
+  /** Visible channels for which the decay plot domain was built. */
+  private boolean[] decayVisible;
+
+  /** Domain set of the decay plots, for the visible channels. */
+  private Gridded2DSet decaySet;
+
+  /** Decay plot fields, reused while the domain set stays the same. */
+  private FlatField dataField, fitField, resField;
+
+  /**
+   * Samples of recently probed pixels, keyed by pixel index and ordered
+   * from least to most recently used.
+   */
+  private LinkedHashMap<Integer, float[]> probeCache =
+    new LinkedHashMap<Integer, float[]>(16, 0.75f, true)
+  {
+    protected boolean removeEldestEntry(Map.Entry<Integer, float[]> eldest) {
+      return size() > PROBE_CACHE_SIZE;
+    }
+  };
+
   private float maxVal;
   private float tauMin, tauMax;
 
@@ -454,6 +495,7 @@ public class SlimPlotter implements ActionListener, ChangeListener,
       masterWindow.setContentPane(masterPane);
 
       twoDPane = new TwoDPane(this, data, types);
+      regionSums = new RegionSums(data.data);
 
       setProgress(progress, 980); // estimate: 98%
 
@@ -670,7 +712,7 @@ public class SlimPlotter implements ActionListener, ChangeListener,
 
       exportData = new JButton("Export");
       exportData.setToolTipText(
-        "Exports the selected ROI's raw data to a text file");
+        "Exports the selected ROI's raw data and per-pixel fits");
       exportData.addActionListener(this);
 
       setProgress(progress, 990); // estimate: 99%
@@ -772,8 +814,12 @@ public class SlimPlotter implements ActionListener, ChangeListener,
 
   // -- SlimPlotter methods --
 
-  private Thread plotThread;
-  private boolean plotCanceled;
+  /** Runs plots on a single thread, collapsing requests that pile up. */
+  private final PlotScheduler plots = new PlotScheduler(this);
+
+  /** Whether the most recently requested plot is of the per-pixel probe. */
+  private volatile boolean probeRequested;
+
   private boolean doProbe, doRecalc, doRescale, doRefit;
 
   public void plotProbe(boolean rescale) {
@@ -785,33 +831,18 @@ public class SlimPlotter implements ActionListener, ChangeListener,
   }
 
   public void plotData(boolean recalc, boolean rescale, boolean refit) {
-    plotData(doProbe, recalc, rescale, refit);
+    plotData(probeRequested, recalc, rescale, refit);
   }
 
-  /** Plots the data in a separate thread. */
-  private void plotData(final boolean probe,
-    final boolean recalc, final boolean rescale, final boolean refit)
+  /**
+   * Plots the data in a separate thread, superseding any plot that is
+   * already pending or in progress.
+   */
+  private void plotData(boolean probe,
+    boolean recalc, boolean rescale, boolean refit)
   {
-    final SlimPlotter sp = this;
-    new Thread("PlotSpawner") {
-      public void run() {
-        synchronized (sp) {
-          if (plotThread != null) {
-            // wait for old thread to cancel out
-            plotCanceled = true;
-            try { plotThread.join(); }
-            catch (InterruptedException exc) { exc.printStackTrace(); }
-          }
-          sp.doProbe = probe;
-          sp.doRecalc = recalc;
-          sp.doRescale = rescale;
-          sp.doRefit = refit;
-          plotCanceled = false;
-          plotThread = new Thread(sp, "Plotter");
-          plotThread.start();
-        }
-      }
-    }.start();
+    probeRequested = probe;
+    plots.request(probe, recalc, rescale, refit);
   }
 
   /** Exports fit data to a user-specified file. */
@@ -820,12 +851,37 @@ public class SlimPlotter implements ActionListener, ChangeListener,
     JFileChooser jc = new JFileChooser(System.getProperty("user.dir"));
     jc.addChoosableFileFilter(new ExtensionFileFilter("txt",
       "Text files"));
+    ExtensionFileFilter rawFilter = null, tiffFilter = null;
+    if (data.allowCurveFit) {
+      rawFilter = new ExtensionFileFilter("raw",
+        "Raw fit parameter planes (32-bit float)");
+      tiffFilter = new ExtensionFileFilter("tif",
+        "TIFF fit parameter planes (32-bit float)");
+      jc.addChoosableFileFilter(rawFilter);
+      jc.addChoosableFileFilter(tiffFilter);
+    }
     int rval = jc.showSaveDialog(exportData);
     if (rval != JFileChooser.APPROVE_OPTION) return;
     File file = jc.getSelectedFile();
     if (file == null) return;
 
     String fileName = file.getPath();
+    String lowerName = fileName.toLowerCase();
+    if (data.allowCurveFit) {
+      // export per-pixel fits as binary planes, if requested
+      boolean raw = lowerName.endsWith(".raw");
+      boolean tiff = lowerName.endsWith(".tif") ||
+        lowerName.endsWith(".tiff");
+      if (!raw && !tiff && file.getName().indexOf('.') < 0) {
+        raw = jc.getFileFilter() == rawFilter;
+        tiff = jc.getFileFilter() == tiffFilter;
+      }
+      if (raw || tiff) {
+        exportPlanes(file.getName().indexOf('.') < 0 ? fileName :
+          fileName.substring(0, fileName.lastIndexOf('.')), tiff);
+        return;
+      }
+    }
     String baseName = fileName.toLowerCase().endsWith(".txt") ?
       fileName.substring(0, fileName.length() - 4) : fileName;
     File binnedFile = new File(baseName + ".txt");
@@ -838,7 +894,8 @@ public class SlimPlotter implements ActionListener, ChangeListener,
 
     try {
       // write currently displayed binned data to file
-      PrintWriter out = new PrintWriter(new FileWriter(binnedFile));
+      PrintWriter out =
+        new PrintWriter(new BufferedWriter(new FileWriter(binnedFile)));
       out.println(data.timeBins + " x " + data.channels +
         " (count=" + twoDPane.getROICount() +
         ", percent=" + twoDPane.getROIPercent() +
@@ -855,58 +912,21 @@ public class SlimPlotter implements ActionListener, ChangeListener,
       }
       out.close();
 
-      // write full matrix of per-pixel fitted data
+      // write full matrix of per-pixel fitted data in the background
       if (data.allowCurveFit) {
         int roiCount = twoDPane.getROICount();
         int roiX = twoDPane.getROIX();
         int roiY = twoDPane.getROIY();
         boolean[][] mask = twoDPane.getROIMask();
-        for (int c=0; c<data.channels; c++) {
-          out = new PrintWriter(new FileWriter(ppFiles[c]));
-          out.println("Wavelength\tY\tX\t" +
-            "iterations\ta1\tt1\t" +
-            "a2\tt2\tc\t" +
-            "chi^2 (reduced)\tchi^2 (raw)\t" +
-            "first\tlast\tin mask?\t" +
-            "a1 fixed?\tt1 fixed?\t" +
-            "a2 fixed?\tt2 fixed?\tc fixed?");
-          int wavelength = data.minWave + c * data.waveStep;
-          ICurveFitter[][] curveFitters = data.curves[c].getCurves();
-          for (int y=0; y<data.height; y++) {
-            for (int x=0; x<data.width; x++) {
-              ICurveFitter cf = curveFitters[y][x];
-              int iter = cf.getIterations();
-              double[][] curve = cf.getCurve();
-              double a1 = curve[0][0];
-              double t1 = curve[0][1];
-              String a2 = data.numExp > 1 ? "" + curve[1][0] : "";
-              String t2 = data.numExp > 1 ? "" + curve[1][1] : "";
-              double cValue = data.numExp > 1 ?
-                curve[0][2] + curve[1][2] : curve[0][2];
-              double reducedChi2 = cf.getReducedChiSquaredError();
-              double rawChi2 = cf.getChiSquaredError();
-              int first = cf.getFirst();
-              int last = cf.getLast();
-              boolean inMask = roiCount == 1 ?
-                (y == roiY && x == roiX) :
-                (mask == null ? false : mask[y][x]);
-              boolean[][] fixed = cf.getFixed();
-              boolean fixA1 = fixed[0][0];
-              boolean fixT1 = fixed[0][1];
-              String fixA2 = data.numExp > 1 ? yesNo(fixed[1][0]) : "";
-              String fixT2 = data.numExp > 1 ? yesNo(fixed[1][1]) : "";
-              boolean fixC = fixed[0][2];
-              out.println(wavelength + "\t" + y + "\t" + x + "\t" +
-                iter + "\t" + a1 + "\t" + t1 + "\t" +
-                a2 + "\t" + t2 + "\t" + cValue + "\t" +
-                reducedChi2 + "\t" + rawChi2 + "\t" +
-                first + "\t" + last + "\t" + yesNo(inMask) + "\t" +
-                yesNo(fixA1) + "\t" + yesNo(fixT1) + "\t" +
-                fixA2 + "\t" + fixT2 + "\t" + yesNo(fixC));
-            }
+        boolean[][] inMask = new boolean[data.height][data.width];
+        for (int y=0; y<data.height; y++) {
+          for (int x=0; x<data.width; x++) {
+            inMask[y][x] = roiCount == 1 ?
+              (y == roiY && x == roiX) :
+              (mask == null ? false : mask[y][x]);
           }
-          out.close();
         }
+        exportText(ppFiles, inMask);
       }
     }
     catch (IOException exc) {
@@ -921,7 +941,7 @@ public class SlimPlotter implements ActionListener, ChangeListener,
   /** Handles checkbox and button presses. */
   public void actionPerformed(ActionEvent e) {
     Object src = e.getSource();
-    if (src == menuFileExit) System.exit(0);
+    if (src == menuFileExit) quit();
     else if (src == menuViewSaveProj) {
       String save = decayPlot.getProjectionControl().getSaveString();
       clip.setClipboardContents(save);
@@ -1041,6 +1061,10 @@ public class SlimPlotter implements ActionListener, ChangeListener,
   // -- Runnable methods --
 
   public void run() {
+    doProbe = plots.isProbe();
+    doRecalc = plots.isRecalc();
+    doRescale = plots.isRescale();
+    doRefit = plots.isRefit();
     debug("Plotting data: probe=" + doProbe + ", recalc=" + doRecalc +
       ", rescale=" + doRescale + ", refit=" + doRefit);
 
@@ -1055,6 +1079,7 @@ public class SlimPlotter implements ActionListener, ChangeListener,
       progress.setMillisToPopup(100);
       progress.setMillisToDecideToPopup(50);
       int p = 0;
+      boolean plotCanceled = false;
 
       boolean doTauColors = menuViewColorTau.getState();
 
@@ -1073,55 +1098,72 @@ public class SlimPlotter implements ActionListener, ChangeListener,
         catch (VisADException exc) { exc.printStackTrace(); }
       }
 
-      // calculate samples
+      // sum the region once, for the decay plot, FWHMs and curve fitting
       progress.setNote("Calculating sums");
+      if (!doProbe || data.computeFWHMs) {
+        if (twoDPane.getROICount() == 1) {
+          regionSums.setPixel(twoDPane.getROIX(), twoDPane.getROIY());
+        }
+        else {
+          regionSums.setRegion(twoDPane.getROIMask(),
+            Workers.getDefaultThreadCount());
+        }
+      }
+
+      // calculate samples
       int numChanVis = 0;
       for (int c=0; c<data.channels; c++) {
         if (data.cVisible[c]) numChanVis++;
       }
+      checkVisibleChannels();
       samps = new float[numChanVis * data.timeBins];
       maxVal = 0;
       float[] maxVals = new float[numChanVis];
       ICurveFitter[] curveFitters = null;
       if (doProbe) curveFitters = twoDPane.getCurveFitters();
-      for (int c=0, cc=0; c<data.channels; c++) {
-        if (!data.cVisible[c]) continue;
-        int[] cfData = null;
-        if (doProbe) {
-          cfData = curveFitters == null ?
-            null : curveFitters[c].getData();
+      Integer probeKey = null;
+      float[] probeSamps = null;
+      if (doProbe && curveFitters != null) {
+        probeKey = Integer.valueOf(
+          twoDPane.getROIY() * data.width + twoDPane.getROIX());
+        probeSamps = probeCache.get(probeKey);
+      }
+      if (probeSamps != null) {
+        // reuse the samples assembled when this pixel was last probed
+        System.arraycopy(probeSamps, 0, samps, 0, samps.length);
+        for (int i=0; i<samps.length; i++) {
+          if (samps[i] > maxVal) maxVal = samps[i];
         }
-        for (int t=0; t<data.timeBins; t++) {
-          int ndx = data.timeBins * cc + t;
-          int sum = 0;
+        p += samps.length;
+        setProgress(progress, p, false);
+      }
+      else {
+        for (int c=0, cc=0; c<data.channels; c++) {
+          if (!data.cVisible[c]) continue;
+          int[] cfData = null;
           if (doProbe) {
             // use per-pixel lifetime probe rather than binned region
-            sum = cfData == null ? 0 : cfData[t];
-          }
-          else if (twoDPane.getROICount() == 1) {
-            // single pixel "region"
-            int roiX = twoDPane.getROIX();
-            int roiY = twoDPane.getROIY();
-            sum = data.data[c][roiY][roiX][t];
+            cfData = curveFitters == null ?
+              null : curveFitters[c].getData();
           }
-          else {
-            // sum pixels within region
-            boolean[][] roiMask = twoDPane.getROIMask();
-            for (int y=0; y<data.height; y++) {
-              for (int x=0; x<data.width; x++) {
-                if (roiMask[y][x]) sum += data.data[c][y][x][t];
-              }
+          else cfData = regionSums.getSums(c);
+          for (int t=0; t<data.timeBins; t++) {
+            int ndx = data.timeBins * cc + t;
+            samps[ndx] = cfData == null ? 0 : cfData[t];
+            if (samps[ndx] > maxVal) maxVal = samps[ndx];
+            if (samps[ndx] > maxVals[cc]) maxVals[cc] = samps[ndx];
+            setProgress(progress, ++p, false);
+            if (progress.isCanceled() || plots.isCanceled()) {
+              plotCanceled = true;
             }
+            if (plotCanceled) break;
           }
-          samps[ndx] = sum;
-          if (samps[ndx] > maxVal) maxVal = samps[ndx];
-          if (samps[ndx] > maxVals[cc]) maxVals[cc] = samps[ndx];
-          setProgress(progress, ++p, false);
-          if (progress.isCanceled()) plotCanceled = true;
           if (plotCanceled) break;
+          cc++;
         }
-        if (plotCanceled) break;
-        cc++;
+      }
+      if (probeKey != null && probeSamps == null && !plotCanceled) {
+        probeCache.put(probeKey, samps.clone());
       }
 
       // full width half maxes
@@ -1133,24 +1175,9 @@ public class SlimPlotter implements ActionListener, ChangeListener,
         for (int c=0, cc=0; c<data.channels; c++) {
           if (!data.cVisible[c]) continue;
           // sum across all pixels
-          int[] sums = new int[data.timeBins];
+          int[] sums = regionSums.getSums(c);
           int sumTotal = 0;
-          for (int t=0; t<data.timeBins; t++) {
-            if (twoDPane.getROICount() == 1) {
-              int roiX = twoDPane.getROIX();
-              int roiY = twoDPane.getROIY();
-              sums[t] = data.data[c][roiY][roiX][t];
-            }
-            else {
-              boolean[][] roiMask = twoDPane.getROIMask();
-              for (int y=0; y<data.height; y++) {
-                for (int x=0; x<data.width; x++) {
-                  if (roiMask[y][x]) sums[t] += data.data[c][y][x][t];
-                }
-              }
-            }
-            sumTotal += sums[t];
-          }
+          for (int t=0; t<data.timeBins; t++) sumTotal += sums[t];
           int maxSum = 0;
           for (int t=0; t<data.timeBins; t++) {
             if (sums[t] > maxSum) maxSum = sums[t];
@@ -1196,6 +1223,13 @@ public class SlimPlotter implements ActionListener, ChangeListener,
         if (doRescale) log("\tTotal counts = " + grandTotal);
       }
 
+      if (plots.isCanceled()) {
+        // superseded by a newer plot, which redoes this one's work
+        progress.close();
+        decayPlot.enableAction();
+        return;
+      }
+
       // curve fitting
       double[][] fitResults = null;
       int[] fitFirst = null, fitLast = null, fitIter = null;
@@ -1218,10 +1252,7 @@ public class SlimPlotter implements ActionListener, ChangeListener,
         tau = new float[data.channels][data.numExp];
         for (int c=0; c<data.channels; c++) Arrays.fill(tau[c], Float.NaN);
 
-        int[] curveData = null;
         if (!doProbe) {
-          curveData = new int[data.timeBins];
-
           StringBuffer equation = new StringBuffer();
           equation.append("y(t) = ");
           for (int i=0; i<data.numExp; i++) {
@@ -1236,7 +1267,48 @@ public class SlimPlotter implements ActionListener, ChangeListener,
           log("Computing fit parameters: " + equation.toString());
         }
 
-        for (int c=0, cc=0; c<data.channels; c++) {
+        // fit every visible channel's region together, if possible
+        ICurveFitter[] regionFitters = null;
+        int[] regionIterations = null;
+        IBatchCurveFitter batchFitter = doProbe ? null :
+          CurveCollection.newBatchCurveFitter(data.curveFitterClass);
+        if (batchFitter != null) {
+          regionFitters = new ICurveFitter[data.channels];
+          CurveTile tile =
+            new CurveTile(data.channels, data.timeBins, data.numExp);
+          for (int c=0; c<data.channels; c++) {
+            if (!data.cVisible[c]) continue;
+            int[] regionData = new int[data.timeBins];
+            System.arraycopy(regionSums.getSums(c), 0,
+              regionData, 0, data.timeBins);
+            ICurveFitter cf =
+              CurveCollection.newCurveFitter(data.curveFitterClass);
+            cf.setComponentCount(data.numExp);
+            cf.setData(regionData,
+              data.maxPeak, data.timeBins - 1 - data.cutBins);
+            cf.estimate();
+            tile.add(cf);
+            regionFitters[c] = cf;
+          }
+          for (int i=0; i<NUM_ITERATIONS; i++) batchFitter.iterate(tile);
+          regionIterations = new int[data.channels];
+          for (int c=0, q=0; c<data.channels; c++) {
+            if (regionFitters[c] == null) continue;
+            regionIterations[c] = tile.getIterations(q);
+            tile.store(q++, regionFitters[c]);
+          }
+        }
+
+        // otherwise, fit each visible channel's region on its own,
+        // several channels at once; results are taken in channel order
+        boolean[] fitDone = null;
+        if (!doProbe && batchFitter == null) {
+          regionFitters = new ICurveFitter[data.channels];
+          fitDone = new boolean[data.channels];
+          fitRegions(regionFitters, fitDone, numChanVis);
+        }
+
+        for (int c=0; c<data.channels; c++) {
           if (!data.cVisible[c]) {
             fitResults[c] = null;
             continue;
@@ -1247,18 +1319,19 @@ public class SlimPlotter implements ActionListener, ChangeListener,
             // use per-pixel lifetime results rather than fitting to region
             curveFitter = curveFitters[c];
           }
-          else {
-            // fit curve to region
+          else if (fitDone != null) {
             log("\tChannel #" + (c + 1) + ":");
-            curveFitter = CurveCollection.newCurveFitter(data.curveFitterClass);
-            for (int i=0; i<data.timeBins; i++) {
-              curveData[i] = (int) samps[data.timeBins * cc + i];
+            curveFitter = awaitRegionFit(regionFitters, fitDone, c);
+            if (curveFitter == null) {
+              log("\t\tfit failed");
+              fitResults[c] = null;
+              continue;
             }
-            curveFitter.setComponentCount(data.numExp);
-            curveFitter.setData(curveData,
-              data.maxPeak, data.timeBins - 1 - data.cutBins);
-            curveFitter.estimate();
-            for (int i=0; i<NUM_ITERATIONS; i++) curveFitter.iterate();
+          }
+          else {
+            // curve was already fit to region, along with other channels
+            log("\tChannel #" + (c + 1) + ":");
+            curveFitter = regionFitters[c];
           }
 
           // extract fit results from curve fitter object
@@ -1280,7 +1353,8 @@ public class SlimPlotter implements ActionListener, ChangeListener,
 
           fitFirst[c] = curveFitter.getFirst();
           fitLast[c] = curveFitter.getLast();
-          fitIter[c] = curveFitter.getIterations();
+          fitIter[c] = regionIterations == null ?
+            curveFitter.getIterations() : regionIterations[c];
           fitChi2[c] = curveFitter.getReducedChiSquaredError();
           fitA1[c] = results[0][0];
           fitB1[c] = results[0][1];
@@ -1304,7 +1378,6 @@ public class SlimPlotter implements ActionListener, ChangeListener,
           }
 
           setProgress(progress, ++p, false);
-          cc++;
         }
       }
 
@@ -1404,21 +1477,7 @@ public class SlimPlotter implements ActionListener, ChangeListener,
 
       try {
         // construct domain set for 3D surface plots
-        float[][] bcGrid = new float[2][data.timeBins * numChanVis];
-        for (int c=0, cc=0; c<data.channels; c++) {
-          if (!data.cVisible[c]) continue;
-          for (int t=0; t<data.timeBins; t++) {
-            int ndx = data.timeBins * cc + t;
-            bcGrid[0][ndx] = data.timeBins > 1 ?
-              t * data.timeRange / (data.timeBins - 1) : 0;
-            bcGrid[1][ndx] = data.channels > 1 ?
-              c * (data.maxWave - data.minWave) /
-              (data.channels - 1) + data.minWave : 0;
-          }
-          cc++;
-        }
-        Gridded2DSet bcSet = new Gridded2DSet(types.bc, bcGrid,
-          data.timeBins, numChanVis, null, types.bcUnits, null, false);
+        if (decaySet == null) decaySet = makeDecaySet(numChanVis);
 
         // compile color values for 3D surface plot
         float[] colors = new float[numChanVis * data.timeBins];
@@ -1470,9 +1529,8 @@ public class SlimPlotter implements ActionListener, ChangeListener,
             samps[i] = linearToLog(samps[i]);
           }
         }
-        FlatField dataField = new FlatField(types.bcvFunc, bcSet);
-        dataField.setSamples(new float[][] {samps, colors}, false);
-        dataSurfaceRef.setData(dataField);
+        dataField = updateField(dataField, types.bcvFunc,
+          dataSurfaceRef, new float[][] {samps, colors});
         dataLinesRef.setData(makeLines(dataField));
 
         // construct "Lines" plot
@@ -1534,10 +1592,9 @@ public class SlimPlotter implements ActionListener, ChangeListener,
               fitSamps[i] = linearToLog(fitSamps[i]);
             }
           }
-          FlatField fit = new FlatField(types.bcvFuncFit, bcSet);
-          fit.setSamples(new float[][] {fitSamps}, false);
-          fitSurfaceRef.setData(fit);
-          fitLinesRef.setData(makeLines(fit));
+          fitField = updateField(fitField, types.bcvFuncFit,
+            fitSurfaceRef, new float[][] {fitSamps});
+          fitLinesRef.setData(makeLines(fitField));
         }
 
         if (residuals != null) {
@@ -1549,10 +1606,9 @@ public class SlimPlotter implements ActionListener, ChangeListener,
               residuals[i] = linearToLog(residuals[i]);
             }
           }
-          FlatField res = new FlatField(types.bcvFuncRes, bcSet);
-          res.setSamples(new float[][] {residuals}, false);
-          resSurfaceRef.setData(res);
-          resLinesRef.setData(makeLines(res));
+          resField = updateField(resField, types.bcvFuncRes,
+            resSurfaceRef, new float[][] {residuals});
+          resLinesRef.setData(makeLines(resField));
         }
       }
       catch (VisADException exc) { exc.printStackTrace(); }
@@ -1596,14 +1652,13 @@ public class SlimPlotter implements ActionListener, ChangeListener,
     }
 
     decayPlot.enableAction();
-    plotThread = null;
   }
 
   // -- WindowListener methods --
 
   public void windowActivated(WindowEvent e) { }
   public void windowClosed(WindowEvent e) { }
-  public void windowClosing(WindowEvent e) { System.exit(0); }
+  public void windowClosing(WindowEvent e) { quit(); }
   public void windowDeactivated(WindowEvent e) { }
   public void windowDeiconified(WindowEvent e) { }
   public void windowIconified(WindowEvent e) { }
@@ -1611,14 +1666,139 @@ public class SlimPlotter implements ActionListener, ChangeListener,
 
   // -- Helper methods --
 
+  /** Saves the per-pixel curve fits for next time, then exits. */
+  private void quit() {
+    if (twoDPane != null) {
+      try {
+        twoDPane.saveFits();
+      }
+      catch (IOException exc) { exc.printStackTrace(); }
+    }
+    System.exit(0);
+  }
+
   /** Converts linear value to logarithm value. */
   private float linearToLog(float v) {
     boolean inverse = v < 0;
     if (inverse) v = -v;
-    float result = (float) v >= 1 ? (float) Math.log(v) / BASE_LOG : 0;
+    float result = v >= 1 ? (float) Math.log(v) / BASE_LOG : 0;
     return inverse ? -result : result;
   }
 
+  /**
+   * Fits a curve to the region of each visible channel on pooled threads,
+   * several channels at once. As each channel's fit finishes, its fitter
+   * (or null, if the fit failed) is stored and the channel marked done,
+   * notifying any thread waiting on the done array.
+   */
+  private void fitRegions(final ICurveFitter[] fitters,
+    final boolean[] done, int numChanVis)
+  {
+    int threads = Workers.getDefaultThreadCount();
+    int workers = Math.max(1, Math.min(threads, numChanVis));
+    // a fit can spread its population across the cores left over
+    final int fitThreads = Math.max(1, threads / workers);
+    final AtomicInteger next = new AtomicInteger();
+    Workers.start(new Runnable() {
+      public void run() {
+        while (true) {
+          int c = next.getAndIncrement();
+          if (c >= data.channels) break;
+          if (!data.cVisible[c]) continue;
+          ICurveFitter cf = null;
+          try {
+            cf = CurveCollection.newCurveFitter(data.curveFitterClass);
+            if (cf instanceof GACurveFitter) {
+              ((GACurveFitter) cf).setThreadCount(fitThreads);
+            }
+            int[] regionData = new int[data.timeBins];
+            System.arraycopy(regionSums.getSums(c), 0,
+              regionData, 0, data.timeBins);
+            cf.setComponentCount(data.numExp);
+            cf.setData(regionData,
+              data.maxPeak, data.timeBins - 1 - data.cutBins);
+            cf.estimate();
+            for (int i=0; i<NUM_ITERATIONS; i++) cf.iterate();
+          }
+          catch (RuntimeException exc) {
+            exc.printStackTrace();
+            cf = null;
+          }
+          synchronized (done) {
+            fitters[c] = cf;
+            done[c] = true;
+            done.notifyAll();
+          }
+        }
+      }
+    }, workers);
+  }
+
+  /** Waits for the given channel's region fit started by fitRegions. */
+  private ICurveFitter awaitRegionFit(ICurveFitter[] fitters,
+    boolean[] done, int c)
+  {
+    synchronized (done) {
+      boolean interrupted = false;
+      while (!done[c]) {
+        try { done.wait(); }
+        catch (InterruptedException exc) { interrupted = true; }
+      }
+      if (interrupted) Thread.currentThread().interrupt();
+      return fitters[c];
+    }
+  }
+
+  /**
+   * Discards the decay plot domain set, the fields built on it and the
+   * cached probe samples if the visible channels have changed.
+   */
+  private void checkVisibleChannels() {
+    if (Arrays.equals(decayVisible, data.cVisible)) return;
+    decayVisible = data.cVisible.clone();
+    decaySet = null;
+    dataField = fitField = resField = null;
+    probeCache.clear();
+  }
+
+  /** Constructs the domain set of the decay plots. */
+  private Gridded2DSet makeDecaySet(int numChanVis) throws VisADException {
+    float[][] bcGrid = new float[2][data.timeBins * numChanVis];
+    for (int c=0, cc=0; c<data.channels; c++) {
+      if (!decayVisible[c]) continue;
+      for (int t=0; t<data.timeBins; t++) {
+        int ndx = data.timeBins * cc + t;
+        bcGrid[0][ndx] = data.timeBins > 1 ?
+          t * data.timeRange / (data.timeBins - 1) : 0;
+        bcGrid[1][ndx] = data.channels > 1 ?
+          c * (data.maxWave - data.minWave) /
+          (data.channels - 1) + data.minWave : 0;
+      }
+      cc++;
+    }
+    return new Gridded2DSet(types.bc, bcGrid,
+      data.timeBins, numChanVis, null, types.bcUnits, null, false);
+  }
+
+  /**
+   * Pushes new samples to the given decay plot field, which also notifies
+   * its display. If the field does not exist yet, it is created on the
+   * decay plot domain set and attached to the given reference.
+   */
+  private FlatField updateField(FlatField field, FunctionType type,
+    DataReferenceImpl ref, float[][] samples)
+    throws VisADException, RemoteException
+  {
+    if (field != null) {
+      field.setSamples(samples, false);
+      return field;
+    }
+    field = new FlatField(type, decaySet);
+    field.setSamples(samples, false);
+    ref.setData(field);
+    return field;
+  }
+
   private FieldImpl makeLines(FlatField surface) {
     try {
       // HACK - horrible conversion from aligned Gridded2DSet to ProductSet
@@ -1653,6 +1833,111 @@ public class SlimPlotter implements ActionListener, ChangeListener,
     return null;
   }
 
+  /**
+   * Writes the per-pixel fits of each channel to the given text files on a
+   * background thread, with a cancelable progress monitor.
+   */
+  private void exportText(final File[] files, final boolean[][] inMask) {
+    final int[] wavelengths = getWavelengths();
+    final FitExporter exporter = new FitExporter(data.curves, data.numExp);
+    export(exporter, new Callable<Boolean>() {
+      public Boolean call() throws IOException {
+        return Boolean.valueOf(exporter.writeText(files, wavelengths, inMask,
+          Workers.getDefaultThreadCount()));
+      }
+    }, "Exported per-pixel fits to " + files.length + " files");
+  }
+
+  /**
+   * Exports per-pixel fit parameters to files with the given base name,
+   * as a raw file of float planes with a JSON header,
+   * or as a multi-page TIFF, on a background thread with a cancelable
+   * progress monitor.
+   */
+  private void exportPlanes(String baseName, boolean tiff) {
+    final FitExporter exporter = new FitExporter(data.curves, data.numExp);
+    Callable<Boolean> task;
+    String message;
+    if (tiff) {
+      final File tiffFile = new File(baseName + ".tif");
+      task = new Callable<Boolean>() {
+        public Boolean call() throws IOException {
+          return Boolean.valueOf(exporter.writeTIFF(tiffFile));
+        }
+      };
+      message = "Exported fit parameters to " + tiffFile;
+    }
+    else {
+      final int[] wavelengths = getWavelengths();
+      final File rawFile = new File(baseName + ".raw");
+      final File headerFile = new File(baseName + ".json");
+      task = new Callable<Boolean>() {
+        public Boolean call() throws IOException {
+          return Boolean.valueOf(exporter.writeRaw(rawFile, headerFile,
+            wavelengths));
+        }
+      };
+      message = "Exported fit parameters to " + rawFile;
+    }
+    export(exporter, task, message);
+  }
+
+  /**
+   * Runs the given export of per-pixel fits on a thread of the shared
+   * worker pool, with a cancelable progress monitor, logging the given
+   * message if the export completes.
+   */
+  private void export(final FitExporter exporter,
+    final Callable<Boolean> task, final String message)
+  {
+    final ProgressMonitor progress = new ProgressMonitor(exportData,
+      "Exporting per-pixel fits", null, 0, exporter.getMaxProgress());
+    progress.setMillisToPopup(100);
+    progress.setMillisToDecideToPopup(50);
+    final Timer refresh = new Timer(EXPORT_REFRESH, new ActionListener() {
+      public void actionPerformed(ActionEvent e) {
+        if (progress.isCanceled()) exporter.cancel();
+        else progress.setProgress(exporter.getProgress());
+      }
+    });
+    exportData.setEnabled(false);
+    refresh.start();
+    Workers.start(new Runnable() {
+      public void run() {
+        Exception failure = null;
+        boolean done = false;
+        try {
+          done = task.call().booleanValue();
+        }
+        catch (Exception exc) { failure = exc; }
+        final Exception exc = failure;
+        final boolean complete = done;
+        SwingUtilities.invokeLater(new Runnable() {
+          public void run() {
+            refresh.stop();
+            progress.close();
+            exportData.setEnabled(true);
+            if (exc != null) {
+              JOptionPane.showMessageDialog(exportData,
+                "There was a problem writing the file: " + exc.getMessage(),
+                SlimData.TITLE, JOptionPane.ERROR_MESSAGE);
+            }
+            else if (complete) log(message);
+          }
+        });
+      }
+    }, 1);
+  }
+
+  /** Gets the wavelength of each channel, in nanometers. */
+  private int[] getWavelengths() {
+    int[] wavelengths = new int[data.channels];
+    for (int c=0; c<data.channels; c++) {
+      wavelengths[c] = data.minWave + c * data.waveStep;
+    }
+    return wavelengths;
+  }
+
   private void updateZAxis() {
     float f = Float.NaN;
     try { f = Float.parseFloat(zScaleValue.getText()); }
@@ -1667,8 +1952,6 @@ public class SlimPlotter implements ActionListener, ChangeListener,
     // CTR TODO - call CurveRenderer.setFixed(boolean[][])
   }
 
-  private String yesNo(boolean value) { return value ? "yes" : "no"; }
-
   // -- Utility methods --
 
   protected static void setProgress(ProgressMonitor progress, int p) {
@@ -29,6 +29,7 @@ import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.util.Vector;
 
@@ -44,6 +45,7 @@ import javax.swing.JRadioButton;
 import javax.swing.JSlider;
 import javax.swing.JTextField;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.TitledBorder;
@@ -52,11 +54,15 @@ import javax.swing.event.ChangeListener;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
 
-import loci.slim.fit.BurnInRenderer;
 import loci.slim.fit.CurveCollection;
+import loci.slim.fit.CurveRenderer;
 import loci.slim.fit.ICurveFitter;
 import loci.slim.fit.ICurveRenderer;
+import loci.slim.fit.ParallelBurnInRenderer;
+import loci.slim.fit.PhasorTransform;
+import loci.slim.fit.RLDCurveFitter;
 import loci.slim.fit.RendererSwitcher;
+import loci.slim.fit.Workers;
 import visad.AnimationControl;
 import visad.CellImpl;
 import visad.ColorControl;
@@ -121,6 +127,10 @@ public class TwoDPane extends JPanel
   // lifetime parameters
   private FlatField[] lifetimeFields;
 
+  // phasor parameters
+  private FlatField[] phasorFields;
+  private boolean phasorPending;
+
   // ROI parameters
   private float[][] roiGrid;
   private UnionSet curveSet;
@@ -137,9 +147,9 @@ public class TwoDPane extends JPanel
   private JProgressBar progress;
   private JButton startStopButton;
   private JSlider cSlider;
-  private JRadioButton intensityMode, lifetimeMode;
+  private JRadioButton intensityMode, lifetimeMode, phasorMode;
   private JRadioButton projectionMode, emissionMode;
-  private JCheckBox cToggle;
+  private JCheckBox cToggle, allChannelsBox;
   private ColorWidget colorWidget;
   private JTextField iterField, fpsField;
 
@@ -304,6 +314,9 @@ public class TwoDPane extends JPanel
 
     intensityMode = new JRadioButton("Intensity", true);
     lifetimeMode = new JRadioButton("Lifetime");
+    phasorMode = new JRadioButton("Phasor Lifetime");
+    phasorMode.setToolTipText("<html>Displays the phase lifetime of each " +
+      "pixel,<br>computed directly from its phasor coordinates.</html>");
     emissionMode = new JRadioButton("Emission Spectra");
     emissionMode.setToolTipText("<html>" +
       "Displays an emission spectrum of the data.</html>");
@@ -315,15 +328,18 @@ public class TwoDPane extends JPanel
     ButtonGroup group = new ButtonGroup();
     group.add(intensityMode);
     group.add(lifetimeMode);
+    group.add(phasorMode);
     group.add(projectionMode);
     group.add(emissionMode);
     intensityMode.addActionListener(this);
     lifetimeMode.addActionListener(this);
+    phasorMode.addActionListener(this);
     projectionMode.addActionListener(this);
     emissionMode.addActionListener(this);
     viewModePane.setAlignmentX(Component.CENTER_ALIGNMENT);
     viewModePane.add(intensityMode);
     viewModePane.add(lifetimeMode);
+    viewModePane.add(phasorMode);
     viewModePane.add(projectionMode);
     viewModePane.add(emissionMode);
 
@@ -356,6 +372,15 @@ public class TwoDPane extends JPanel
     Util.adjustTextField(fpsField);
     fpsPane.add(fpsField);
 
+    allChannelsBox = new JCheckBox("All channels");
+    allChannelsBox.setToolTipText("<html>If checked, computes lifetimes " +
+      "for every channel at once,<br>giving priority to the selected " +
+      "channel.</html>");
+    allChannelsBox.setAlignmentX(Component.CENTER_ALIGNMENT);
+    allChannelsBox.setEnabled(data.allowCurveFit && data.channels > 1);
+    allChannelsBox.addActionListener(this);
+    lifetimePane.add(allChannelsBox);
+
     // standardize label sizes
     fpsLabel.setMinimumSize(iterLabel.getPreferredSize());
     fpsLabel.setPreferredSize(iterLabel.getPreferredSize());
@@ -373,10 +398,15 @@ public class TwoDPane extends JPanel
     if (data.allowCurveFit) {
       curveRenderers = new ICurveRenderer[data.channels];
       for (int c=0; c<data.channels; c++) {
-        curveRenderers[c] = new BurnInRenderer(data.curves[c]);
-        curveRenderers[c].setComponentCount(data.numExp);
+        ParallelBurnInRenderer renderer =
+          new ParallelBurnInRenderer(data.curves[c]);
+        renderer.setComponentCount(data.numExp);
+        // preview coarse subsamplings with closed-form lifetimes
+        renderer.setCoarseEstimator(RLDCurveFitter.class);
+        curveRenderers[c] = renderer;
       }
       curveImages = new float[data.channels][][];
+      restoreFits();
 
       switcher = new RendererSwitcher(curveRenderers);
       progressRefresh = new Timer(PROGRESS_RATE, this);
@@ -413,6 +443,28 @@ public class TwoDPane extends JPanel
     return cf;
   }
 
+  /**
+   * Stops any lifetime computation, then saves the curve fits of every
+   * channel whose initial fit is complete, for use by a later session.
+   */
+  public void saveFits() throws IOException {
+    if (data.fits == null) return;
+    if (curveThread != null) {
+      switcher.stop();
+      try {
+        curveThread.join();
+      }
+      catch (InterruptedException exc) { }
+    }
+    boolean[] complete = new boolean[data.channels];
+    boolean any = false;
+    for (int c=0; c<data.channels; c++) {
+      complete[c] = ((CurveRenderer) curveRenderers[c]).isImproving();
+      if (complete[c]) any = true;
+    }
+    if (any) data.fits.save(data.curves, complete);
+  }
+
   // -- ActionListener methods --
 
   /** Handles checkbox presses. */
@@ -423,6 +475,7 @@ public class TwoDPane extends JPanel
       if (lifetimeActive) {
         // begin lifetime computation
         startStopButton.setText("Stop");
+        allChannelsBox.setEnabled(false);
         int c = getActiveC();
         switcher.setCurrent(c);
         curveThread = new Thread(switcher, "Lifetime");
@@ -433,8 +486,12 @@ public class TwoDPane extends JPanel
         // terminate lifetime computation
         startStopButton.setText("Start");
         switcher.stop();
+        allChannelsBox.setEnabled(data.channels > 1);
       }
     }
+    else if (src == allChannelsBox) {
+      switcher.setConcurrent(allChannelsBox.isSelected());
+    }
     else if (src == cToggle) {
       // toggle visibility of this channel
       int c = getActiveC();
@@ -443,6 +500,7 @@ public class TwoDPane extends JPanel
     }
     else if (src == intensityMode) doIntensity(false);
     else if (src == lifetimeMode) doLifetime();
+    else if (src == phasorMode) doPhasor();
     else if (src == projectionMode) doSpectralProjection();
     else if (src == emissionMode) doEmissionSpectrum();
     else if (src == progressRefresh) {
@@ -516,6 +574,9 @@ public class TwoDPane extends JPanel
       FlatField ff = null;
       if (intensityMode.isSelected()) ff = intensityFields[c];
       else if (lifetimeMode.isSelected()) ff = lifetimeFields[c];
+      else if (phasorMode.isSelected() && phasorFields != null) {
+        ff = phasorFields[c];
+      }
       if (ff != null) {
         try {
           imageRef.setData(ff);
@@ -656,6 +717,25 @@ public class TwoDPane extends JPanel
     else slim.plotRegion(true, rescale, refit);
   }
 
+  /** Resumes each channel's renderer from fits saved by an earlier session. */
+  private void restoreFits() {
+    if (data.fits == null) return;
+    boolean[] restored = null;
+    try {
+      restored = data.fits.load(data.curves);
+    }
+    catch (IOException exc) {
+      SlimPlotter.log("Cannot read fit store: " + exc.getMessage());
+    }
+    if (restored == null) return;
+    for (int c=0; c<data.channels; c++) {
+      if (!restored[c]) continue;
+      ((CurveRenderer) curveRenderers[c]).restore(data.fits.getIterations(c));
+      SlimPlotter.log("Restored channel #" + (c + 1) + " fits from " +
+        data.fits.getFile());
+    }
+  }
+
   private void doIntensity(boolean adjustSlider) {
     int maxChan = 0, intensityMax = 0;
     try {
@@ -666,8 +746,7 @@ public class TwoDPane extends JPanel
           float[][] samples = new float[1][data.width * data.height];
           for (int y=0; y<data.height; y++) {
             for (int x=0; x<data.width; x++) {
-              int sum = 0;
-              for (int t=0; t<data.timeBins; t++) sum += data.data[c][y][x][t];
+              int sum = data.data.sumCurve(c, y, x);
               if (sum > intensityMax) {
                 intensityMax = sum;
                 maxChan = c;
@@ -714,6 +793,68 @@ public class TwoDPane extends JPanel
     catch (RemoteException exc) { exc.printStackTrace(); }
   }
 
+  private void doPhasor() {
+    if (phasorFields == null) {
+      // transform the whole image in the background; shown once ready
+      if (!phasorPending) {
+        phasorPending = true;
+        Workers.start(new Runnable() {
+          public void run() { computePhasor(); }
+        }, 1);
+      }
+      return;
+    }
+    try {
+      int c = getActiveC();
+      imageRef.setData(phasorFields[c]);
+      colorWidget.updateColorScale();
+
+      // reset to RGB color map
+      ColorControl cc = (ColorControl) iPlot.getControl(ColorControl.class);
+      cc.setTable(ColorControl.initTableVis5D(new float[3][256]));
+    }
+    catch (VisADException exc) { exc.printStackTrace(); }
+    catch (RemoteException exc) { exc.printStackTrace(); }
+  }
+
+  /**
+   * Computes the phase lifetime image of each channel, off the event thread,
+   * then displays it if phasor mode is still selected.
+   */
+  private void computePhasor() {
+    FlatField[] fields = null;
+    try {
+      PhasorTransform phasor = new PhasorTransform(data.data,
+        data.maxPeak, data.timeBins - 1 - data.cutBins);
+      phasor.compute(Workers.getDefaultThreadCount());
+      FlatField[] ff = new FlatField[data.channels];
+      for (int c=0; c<data.channels; c++) {
+        // convert bins to ps
+        float[] taus = phasor.getPhaseLifetimes(c);
+        float[][] samples = new float[1][taus.length];
+        for (int i=0; i<taus.length; i++) {
+          samples[0][i] = data.binsToPico(taus[i]);
+        }
+        ff[c] = new FlatField(types.xyvFunc, types.xySet);
+        ff[c].setSamples(samples, false);
+      }
+      fields = ff;
+    }
+    catch (VisADException exc) { exc.printStackTrace(); }
+    catch (RemoteException exc) { exc.printStackTrace(); }
+    finally {
+      final FlatField[] result = fields;
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          // on failure, selecting phasor mode again retries
+          phasorPending = false;
+          phasorFields = result;
+          if (result != null && phasorMode.isSelected()) doPhasor();
+        }
+      });
+    }
+  }
+
   private void doSpectralProjection() {
     // TODO
     // https://skyking.microscopy.wisc.edu/trac/java/ticket/86
@@ -748,10 +889,10 @@ public class TwoDPane extends JPanel
       }
       String s = "Iter. #" + totalIter +
         ": worst=" + worst + ": total=" + tRCSE;
-      if (curveRenderers[c] instanceof BurnInRenderer) {//TEMP
-        BurnInRenderer bir = (BurnInRenderer) curveRenderers[c];//TEMP
-        s += "; stalled=" + bir.getStallCount();//TEMP
-      }//TEMP
+      if (curveRenderers[c] instanceof CurveRenderer) {
+        CurveRenderer cr = (CurveRenderer) curveRenderers[c];
+        s += "; stalled=" + cr.getStallCount();
+      }
       progress.setString(s);
     }
     else {
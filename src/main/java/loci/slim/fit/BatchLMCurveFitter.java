@@ -0,0 +1,321 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+import java.util.Arrays;
+
+/**
+ * Levenberg-Marquardt fitter that fits every curve of a {@link CurveTile} in
+ * lockstep. It minimizes the same objective as {@link FastLMCurveFitter},
+ * but each pass over the data sweeps one time bin across all curves of the
+ * tile, in simple loops over contiguous arrays that the JIT compiler can
+ * vectorize. Only the small per-curve linear solves are done one curve at
+ * a time. Each curve's damping factor is kept in the tile.
+ */
+public class BatchLMCurveFitter implements IBatchCurveFitter {
+
+  // -- Constants --
+
+  /**
+   * Rejected steps are retried within the same iteration only while at
+   * least one in this many curves of the tile is still waiting for one.
+   */
+  private static final int MIN_RETRY_FRACTION = 4;
+
+  // -- Fields --
+
+  /** Which parameters are held constant, or null if none. */
+  protected boolean[][] fixed;
+
+  /** Fitter used to compute initial estimates, one curve at a time. */
+  private FastLMCurveFitter estimator;
+
+  // scratch buffers, dimensioned [...][size] and reused between tiles
+  private double[] model, mask, resid, chi2, pearson;
+  private double[] trialChi2, trialPearson, trial;
+  private double[] exp, decay, deriv, alpha, beta;
+  private boolean[] pending, tried;
+  private int bufferSize;
+
+  // scratch space for per-curve solves
+  private final int[] free = new int[FastLMCurveFitter.MAX_PARAMS];
+  private final double[][] work = new double[FastLMCurveFitter.MAX_PARAMS]
+    [FastLMCurveFitter.MAX_PARAMS];
+  private final double[] rhs = new double[FastLMCurveFitter.MAX_PARAMS];
+  private final double[] step = new double[FastLMCurveFitter.MAX_PARAMS];
+
+  // -- IBatchCurveFitter methods --
+
+  /* @see IBatchCurveFitter#setFixed(boolean[][]) */
+  public void setFixed(boolean[][] fixed) { this.fixed = fixed; }
+
+  /* @see IBatchCurveFitter#estimate(CurveTile) */
+  public void estimate(CurveTile tile) {
+    if (estimator == null) estimator = new FastLMCurveFitter();
+    int components = tile.components, size = tile.size;
+    if (estimator.getComponentCount() != components) {
+      estimator.setComponentCount(components);
+    }
+    if (fixed != null) estimator.setFixed(fixed);
+    for (int p=0; p<tile.count; p++) {
+      estimator.setData(tile.data[p], tile.first[p], tile.last[p]);
+      estimator.estimate();
+      double[][] curve = estimator.getCurve();
+      double c = 0;
+      for (int i=0; i<components; i++) {
+        tile.params[2 * i * size + p] = curve[i][0];
+        tile.params[(2 * i + 1) * size + p] = curve[i][1];
+        c += curve[i][2];
+      }
+      tile.params[2 * components * size + p] = c;
+      tile.rcse[p] = estimator.getReducedChiSquaredError();
+      tile.state[p] = FastLMCurveFitter.INITIAL_LAMBDA;
+    }
+  }
+
+  /* @see IBatchCurveFitter#iterate(CurveTile) */
+  public void iterate(CurveTile tile) {
+    int size = tile.size, count = tile.count;
+    int components = tile.components;
+    int numParams = 2 * components + 1;
+    if (count == 0) return;
+    int numFree = 0;
+    for (int i=0; i<components; i++) {
+      if (fixed == null || !fixed[i][0]) free[numFree++] = 2 * i;
+      if (fixed == null || !fixed[i][1]) free[numFree++] = 2 * i + 1;
+    }
+    if (fixed == null || !fixed[0][2]) free[numFree++] = 2 * components;
+    if (numFree == 0) return;
+    allocate(size);
+
+    // skip the tile entirely once every curve has converged or finished
+    boolean active = false;
+    for (int p=0; p<count; p++) {
+      if (tile.state[p] <= 0) tile.state[p] = FastLMCurveFitter.INITIAL_LAMBDA;
+      if (!tile.done[p] && tile.state[p] < FastLMCurveFitter.MAX_LAMBDA) {
+        active = true;
+      }
+    }
+    if (!active) return;
+
+    // accumulate normal equations at the current parameters
+    sweep(tile, tile.params, chi2, pearson, numFree);
+    for (int p=0; p<count; p++) {
+      tile.rcse[p] = reduce(pearson[p], tile.length[p], numParams);
+      pending[p] = !tile.done[p] && chi2[p] != Double.POSITIVE_INFINITY &&
+        tile.state[p] < FastLMCurveFitter.MAX_LAMBDA;
+      if (pending[p]) tile.iterations[p]++;
+    }
+
+    for (int tries=0; tries<FastLMCurveFitter.MAX_TRIES; tries++) {
+      // a retry sweeps the whole tile, so leave stragglers for next time
+      int numPending = 0;
+      for (int p=0; p<count; p++) if (pending[p]) numPending++;
+      if (tries > 0 && numPending * MIN_RETRY_FRACTION < count) break;
+
+      // solve the damped normal equations of each pending curve
+      System.arraycopy(tile.params, 0, trial, 0, numParams * size);
+      boolean any = false;
+      for (int p=0; p<count; p++) {
+        tried[p] = false;
+        if (!pending[p]) continue;
+        if (solve(p, size, numFree, tile.state[p])) {
+          for (int i=0; i<numFree; i++) trial[free[i] * size + p] += step[i];
+          tried[p] = true;
+          any = true;
+        }
+        else damp(tile, p);
+      }
+      if (!any) break;
+
+      // evaluate the trial parameters, and keep any that improve the fit
+      sweep(tile, trial, trialChi2, trialPearson, 0);
+      for (int p=0; p<count; p++) {
+        if (!tried[p]) continue;
+        if (trialChi2[p] < chi2[p]) {
+          for (int k=0; k<numParams; k++) {
+            tile.params[k * size + p] = trial[k * size + p];
+          }
+          tile.rcse[p] = reduce(trialPearson[p], tile.length[p], numParams);
+          tile.state[p] /= FastLMCurveFitter.LAMBDA_FACTOR;
+          pending[p] = false;
+        }
+        else damp(tile, p);
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Ensures the scratch buffers are large enough for the given tile. */
+  private void allocate(int size) {
+    if (bufferSize >= size) return;
+    int max = FastLMCurveFitter.MAX_PARAMS;
+    model = new double[size];
+    mask = new double[size];
+    resid = new double[size];
+    chi2 = new double[size];
+    pearson = new double[size];
+    trialChi2 = new double[size];
+    trialPearson = new double[size];
+    trial = new double[max * size];
+    exp = new double[(max / 2) * size];
+    decay = new double[(max / 2) * size];
+    deriv = new double[max * size];
+    alpha = new double[max * (max + 1) / 2 * size];
+    beta = new double[max * size];
+    pending = new boolean[size];
+    tried = new boolean[size];
+    bufferSize = size;
+  }
+
+  /**
+   * Sweeps every time bin across all curves of the tile, computing the sum
+   * of squared residuals and Pearson's chi-squared for the given parameters.
+   * If numFree is positive, the normal equations of the free parameters are
+   * accumulated as well, with only the lower triangle of J^T J filled.
+   */
+  private void sweep(CurveTile tile, double[] params,
+    double[] sumSq, double[] chiSq, int numFree)
+  {
+    int size = tile.size, count = tile.count;
+    int components = tile.components;
+    int[] counts = tile.counts, length = tile.length;
+    int cOff = 2 * components * size;
+    int tri = numFree * (numFree + 1) / 2;
+    Arrays.fill(sumSq, 0, count, 0);
+    Arrays.fill(chiSq, 0, count, 0);
+    Arrays.fill(alpha, 0, tri * size, 0);
+    Arrays.fill(beta, 0, numFree * size, 0);
+    int maxLength = 0;
+    for (int p=0; p<count; p++) {
+      if (length[p] > maxLength) maxLength = length[p];
+    }
+    for (int j=0; j<components; j++) {
+      int bOff = (2 * j + 1) * size, eOff = j * size;
+      for (int p=0; p<count; p++) {
+        decay[eOff + p] = Math.exp(-params[bOff + p]);
+        exp[eOff + p] = 1;
+      }
+    }
+
+    for (int t=0; t<maxLength; t++) {
+      int row = t * size;
+
+      // model values and residuals, masked past the end of each curve
+      System.arraycopy(params, cOff, model, 0, count);
+      for (int j=0; j<components; j++) {
+        int aOff = 2 * j * size, eOff = j * size;
+        for (int p=0; p<count; p++) {
+          model[p] += params[aOff + p] * exp[eOff + p];
+        }
+      }
+      for (int p=0; p<count; p++) {
+        mask[p] = t < length[p] ? 1 : 0;
+        resid[p] = mask[p] * (counts[row + p] - model[p]);
+        sumSq[p] += resid[p] * resid[p];
+      }
+      for (int p=0; p<count; p++) {
+        if (t >= length[p]) continue;
+        double e = model[p];
+        // penalize NaNs and zeroes harshly, as CurveFitter does
+        if (e != e || e == 0) chiSq[p] = Double.POSITIVE_INFINITY;
+        else chiSq[p] += resid[p] * resid[p] / e;
+      }
+
+      if (numFree > 0) {
+        // partial derivatives of the model for each free parameter
+        for (int i=0; i<numFree; i++) {
+          int k = free[i], dOff = i * size;
+          if (k == 2 * components) {
+            System.arraycopy(mask, 0, deriv, dOff, count);
+          }
+          else if (k % 2 == 0) {
+            int eOff = k / 2 * size;
+            for (int p=0; p<count; p++) {
+              deriv[dOff + p] = mask[p] * exp[eOff + p];
+            }
+          }
+          else {
+            int aOff = (k - 1) * size, eOff = k / 2 * size;
+            for (int p=0; p<count; p++) {
+              deriv[dOff + p] = -mask[p] * params[aOff + p] * t * exp[eOff + p];
+            }
+          }
+        }
+        for (int i=0, ij=0; i<numFree; i++) {
+          int iOff = i * size;
+          for (int p=0; p<count; p++) {
+            beta[iOff + p] += resid[p] * deriv[iOff + p];
+          }
+          for (int j=0; j<=i; j++, ij++) {
+            int aOff = ij * size, jOff = j * size;
+            for (int p=0; p<count; p++) {
+              alpha[aOff + p] += deriv[iOff + p] * deriv[jOff + p];
+            }
+          }
+        }
+      }
+
+      for (int j=0; j<components; j++) {
+        int eOff = j * size;
+        for (int p=0; p<count; p++) exp[eOff + p] *= decay[eOff + p];
+      }
+    }
+    for (int p=0; p<count; p++) {
+      if (sumSq[p] != sumSq[p]) sumSq[p] = Double.POSITIVE_INFINITY;
+    }
+  }
+
+  /**
+   * Solves the damped normal equations of the given curve into the step
+   * buffer.
+   *
+   * @return false if the damped matrix is not positive definite
+   */
+  private boolean solve(int p, int size, int numFree, double lambda) {
+    for (int i=0, ij=0; i<numFree; i++) {
+      for (int j=0; j<=i; j++, ij++) work[i][j] = alpha[ij * size + p];
+      work[i][i] *= 1 + lambda;
+      rhs[i] = beta[i * size + p];
+    }
+    if (!FastLMCurveFitter.cholesky(work, numFree)) return false;
+    FastLMCurveFitter.solve(work, numFree, rhs, step);
+    return true;
+  }
+
+  /** Increases the damping of the given curve after a rejected step. */
+  private void damp(CurveTile tile, int p) {
+    tile.state[p] *= FastLMCurveFitter.LAMBDA_FACTOR;
+    if (tile.state[p] >= FastLMCurveFitter.MAX_LAMBDA) pending[p] = false;
+  }
+
+  /** Converts a chi-squared value into a reduced chi-squared value. */
+  private static double reduce(double chiSq, int length, int numParams) {
+    int degreesOfFreedom = length - numParams;
+    return degreesOfFreedom > 0 ? chiSq / degreesOfFreedom : Double.MAX_VALUE;
+  }
+
+}
@@ -41,6 +41,12 @@ public class BurnInRenderer extends CurveRenderer {
   /** Number of consecutive failures before a pixel is judged to be stalled. */
   private static final int STALL_ITERATIONS = 10;
 
+  /**
+   * Number of pixels estimated or iterated per permit from the thread
+   * budget, before the permit is returned for other renderers to take.
+   */
+  private static final int PIXELS_PER_PERMIT = 64;
+
   // -- Fields --
 
   protected ICurveFitter[][] currentCurves = null;
@@ -54,6 +60,20 @@ public class BurnInRenderer extends CurveRenderer {
   private int worstX, worstY, worstIter;
   private boolean[][] stalled;
   private int stallCount;
+  private boolean batchFitting = true;
+  private CurveTile tile;
+
+  /** Unstalled pixels within the mask, ordered by RCSE. */
+  private PixelHeap queue;
+
+  /** Whether the queue must be rebuilt before it is next used. */
+  private volatile boolean queueStale;
+
+  /** Whether the rendering thread holds a permit from the thread budget. */
+  private boolean holdingBudget;
+
+  /** Number of pixels processed since the permit was last returned. */
+  private int pixelsSinceYield;
 
   // -- Constructor --
 
@@ -88,29 +108,163 @@ public class BurnInRenderer extends CurveRenderer {
 
   public int getStallCount() { return stallCount; }
 
+  /**
+   * Sets whether the initial iterations fit each row of pixels together
+   * with an {@link IBatchCurveFitter}, when one exists for the type of curve
+   * fitters in use. As without batch fitting, each pixel stops being
+   * refined once its RCSE falls below the maximum.
+   */
+  public void setBatchFitting(boolean batch) { batchFitting = batch; }
+
+  /** Gets whether the initial iterations fit rows of pixels together. */
+  public boolean isBatchFitting() { return batchFitting; }
+
+  // -- CurveRenderer methods --
+
+  public boolean isImproving() { return improving; }
+
+  public void restore(int iterations) {
+    currentCurves = curveData.getCurves(0);
+    double total = 0;
+    for (int y=0; y<numRows; y++) {
+      for (int x=0; x<numCols; x++) {
+        ICurveFitter cf = currentCurves[y][x];
+        rcseCache[y][x] = cf.getReducedChiSquaredError();
+        total += rcseCache[y][x];
+        double[][] curve = cf.getCurve();
+        double[] exponentials = new double[numExponentials];
+        for (int i=0; i<numExponentials; i++) exponentials[i] = curve[i][1];
+        Arrays.sort(exponentials);
+        for (int c=0; c<numExponentials; c++) {
+          image[numExponentials-c-1][y * numCols + x] = exponentials[c];
+        }
+      }
+    }
+    totalRCSE = total;
+    totalIterations = iterations;
+    subsampleLevel = -1;
+    currentX = 0;
+    currentY = 0;
+    worstIter = 0;
+    estimated = true;
+    improving = true;
+    maxProgress = numRows * numCols;
+    currProgress = maxProgress;
+    for (int y=0; y<numRows; y++) Arrays.fill(stalled[y], false);
+    stallCount = 0;
+    queueStale = true;
+  }
+
   // -- ICurveRenderer methods --
 
   public void run() {
     alive = true;
+    holdingBudget = acquireBudget();
+    if (!holdingBudget) return;
+    try {
+      render();
+    }
+    finally {
+      if (holdingBudget) releaseBudget();
+      holdingBudget = false;
+    }
+  }
+
+  public double[][] getImage() {
+    return image;
+  }
+
+  public void setComponentCount(int numExp) {
+    numExponentials = numExp;
+    tile = null;
+    image = new double[numExponentials][numRows * numCols];
+    curveData.setComponentCount(numExponentials);
+  }
+
+  public void setMask(boolean[][] mask) {
+    if (mask == null) {
+      this.mask = null;
+      maskCount = numRows * numCols;
+    }
+    else {
+      if (mask.length < numRows) {
+        throw new IllegalArgumentException("Invalid mask: mask.length=" +
+          mask.length + ", numRows=" + numRows);
+      }
+      int count = 0;
+      for (int i=0; i<numRows; i++) {
+        if (mask[i].length < numCols) {
+          throw new IllegalArgumentException("Invalid mask: mask[" + i +
+            "].length=" + mask[i].length + ", numCols=" + numCols);
+        }
+        for (int j=0; j<numCols; j++) if (mask[i][j]) count++;
+      }
+      this.mask = mask;
+      maskCount = count;
+    }
+    // recount stalled pixels
+    int count = 0;
+    for (int y=0; y<numRows; y++) {
+      Arrays.fill(stalled[y], false);
+      for (int x=0; x<numCols; x++) {
+        if (stalled[y][x]) count++;
+      }
+    }
+    stallCount = count;
+    queueStale = true;
+  }
+
+  public boolean[][] getMask() {
+    return mask;
+  }
+
+  public int getImageX() {
+    int sizeX = currentCurves[0].length;
+    return currentX * numCols / sizeX;
+  }
+
+  public int getImageY() {
+    int sizeY = currentCurves.length;
+    return currentY * numRows / sizeY;
+  }
+
+  public double getTotalRCSE() {
+    return totalRCSE;
+  }
 
+  public double getWorstRCSE() {
+    return worstRCSE;
+  }
+
+  // -- Helper methods --
+
+  /** Performs the burn-in, until the renderer is stopped. */
+  private void render() {
     // initial pass - estimates
     while (subsampleLevel >= 0 && alive && !estimated) {
       currentCurves = curveData.getCurves(subsampleLevel);
+      ICurveFitter coarse = subsampleLevel > 0 ? newCoarseEstimator() : null;
       int maxY = currentCurves.length;
       int maxX = currentCurves[0].length;
       while (currentY < maxY && alive) {
+        if (!yieldBudget(maxX - currentX)) return;
         while (currentX < maxX && alive) {
           //System.out.println("ssl: " + subsampleLevel + " x: " + currentX +
           //  " y: " + currentY);
-          currentCurves[currentY][currentX].estimate();
-          //currentCurves[currentY][currentX].iterate();
+          ICurveFitter cf = currentCurves[currentY][currentX];
+          if (coarse != null) {
+            // estimate with the coarse estimator in place of the curve fitter
+            coarse.setData(cf.getData(), cf.getFirst(), cf.getLast());
+            cf = coarse;
+          }
+          cf.estimate();
+          //cf.iterate();
           // This only really matters for the last subsampleLevel
           if (subsampleLevel == 0) {
-            double newRCSE =
-              currentCurves[currentY][currentX].getReducedChiSquaredError();
+            double newRCSE = cf.getReducedChiSquaredError();
             rcseCache[currentY][currentX] = newRCSE;
           }
-          double[][] curve = currentCurves[currentY][currentX].getCurve();
+          double[][] curve = cf.getCurve();
           double[] exponentials = new double[numExponentials];
           for (int i = 0; i < numExponentials; i++) {
             exponentials[i] = curve[i][1];
@@ -142,6 +296,8 @@ public class BurnInRenderer extends CurveRenderer {
         }
       }
       if (alive) {
+        // coarse subsamplings are not revisited once passed
+        curveData.releaseCurves(subsampleLevel);
         subsampleLevel--;
         if (subsampleLevel >= 0) {
           currentX = 0;
@@ -159,7 +315,16 @@ public class BurnInRenderer extends CurveRenderer {
         currentY = 0;
         maxProgress = numRows * numCols;
       }
+      IBatchCurveFitter batch = batchFitting ? CurveCollection.
+        newBatchCurveFitter(currentCurves[0][0].getClass()) : null;
+      if (batch != null) batch.setFixed(curveData.getFixed());
       for (; currentY < numRows; currentY++) {
+        if (!yieldBudget(numCols - currentX)) return;
+        if (batch != null) {
+          // fit the rest of the row together
+          iterateRow(batch);
+          if (!alive) return;
+        }
         for (; currentX < numCols; currentX++) {
           currentIterations = 0;
           currProgress = (currentY * numCols) + currentX;
@@ -200,30 +365,23 @@ public class BurnInRenderer extends CurveRenderer {
     // continuing improvement
     //System.out.println("Got to continuing");
     while (alive) {
+      if (!yieldBudget(1)) return;
       improving = true;
       currProgress = maxProgress;
+      if (queue == null || queueStale) rebuildQueue();
       if (worstIter == 0) {
-        // find new worst error
-        worstX = worstY = -1;
-        double totalVal = 0, worstVal = 0;
-        for (int x = 0; x < numCols; x++) {
-          for (int y = 0; y < numRows; y++) {
-            totalVal += rcseCache[y][x];
-            if ((mask == null || mask[y][x]) && !stalled[y][x] &&
-              rcseCache[y][x] > worstVal)
-            {
-              worstVal = rcseCache[y][x];
-              worstX = x;
-              worstY = y;
-            }
-          }
+        // pick the new worst error
+        int worst = queue.peek();
+        if (worst < 0) {
+          // HACK - workaround for probable bug
+          worstX = worstY = 0;
+        }
+        else {
+          worstX = worst % numCols;
+          worstY = worst / numCols;
         }
-        totalRCSE = totalVal;
       }
 
-      // HACK - workaround for probable bug
-      if (worstY < 0 || worstX < 0) worstX = worstY = 0;
-
       double worst = rcseCache[worstY][worstX];
       if (stallCount == 0) worstRCSE = worst; // update global worst RCSE value
       currentX = worstX;
@@ -234,6 +392,8 @@ public class BurnInRenderer extends CurveRenderer {
         currentCurves[currentY][currentX].getReducedChiSquaredError();
       totalRCSE += newRCSE - rcseCache[currentY][currentX];
       rcseCache[currentY][currentX] = newRCSE;
+      int index = currentY * numCols + currentX;
+      if (queue.contains(index)) queue.update(index, newRCSE);
       if (rcseCache[currentY][currentX] < worst) {
         // error improved
         double[][] curve = currentCurves[currentY][currentX].getCurve();
@@ -256,11 +416,13 @@ public class BurnInRenderer extends CurveRenderer {
           // too many failures; this pixel is stalled
           worstIter = 0;
           stalled[currentY][currentX] = true;
+          queue.remove(index);
           stallCount++;
           if (stallCount >= maskCount) {
             // every pixel is stalled; retry everything
-            for (int y=0; y<numCols; y++) Arrays.fill(stalled[y], false);
+            for (int y=0; y<numRows; y++) Arrays.fill(stalled[y], false);
             stallCount = 0;
+            queueStale = true;
           }
         }
       }
@@ -269,68 +431,82 @@ public class BurnInRenderer extends CurveRenderer {
     }
   }
 
-  public double[][] getImage() {
-    return image;
+  /**
+   * Counts the given number of pixels about to be processed, and once a
+   * batch of pixels has been processed, briefly returns this renderer's
+   * permit from the thread budget, if any, so that renderers sharing the
+   * budget may take their turn.
+   *
+   * @return false if the renderer was stopped before getting a permit back
+   */
+  private boolean yieldBudget(int pixels) {
+    if (budget == null) return true;
+    pixelsSinceYield += pixels;
+    if (pixelsSinceYield <= PIXELS_PER_PERMIT) return true;
+    pixelsSinceYield = pixels;
+    releaseBudget();
+    holdingBudget = acquireBudget();
+    return holdingBudget;
   }
 
-  public void setComponentCount(int numExp) {
-    numExponentials = numExp;
-    image = new double[numExponentials][numRows * numCols];
-    curveData.setComponentCount(numExponentials);
-  }
-
-  public void setMask(boolean[][] mask) {
-    if (mask == null) {
-      this.mask = null;
-      maskCount = numRows * numCols;
+  /**
+   * Performs the initial iterations for the rest of the current row,
+   * fitting all of its pixels together.
+   */
+  private void iterateRow(IBatchCurveFitter batch) {
+    ICurveFitter[] row = currentCurves[currentY];
+    if (tile == null) {
+      tile = new CurveTile(numCols, row[0].getData().length, numExponentials);
     }
-    else {
-      if (mask.length < numRows) {
-        throw new IllegalArgumentException("Invalid mask: mask.length=" +
-          mask.length + ", numRows=" + numRows);
-      }
-      int count = 0;
-      for (int i=0; i<numRows; i++) {
-        if (mask[i].length < numCols) {
-          throw new IllegalArgumentException("Invalid mask: mask[" + i +
-            "].length=" + mask[i].length + ", numCols=" + numCols);
-        }
-        for (int j=0; j<numCols; j++) if (mask[i][j]) count++;
-      }
-      this.mask = mask;
-      maskCount = count;
+    currProgress = currentY * numCols + currentX;
+    tile.clear();
+    for (int x=currentX; x<numCols; x++) tile.add(row[x]);
+    for (int i=0; i<maxIterations; i++) {
+      if (!alive) return;
+      batch.iterate(tile);
+      // stop iterating pixels once they are good enough
+      if (tile.finish(maxRCSE) == 0) break;
     }
-    // recount stalled pixels
-    int count = 0;
-    for (int y=0; y<numRows; y++) {
-      Arrays.fill(stalled[y], false);
-      for (int x=0; x<numCols; x++) {
-        if (stalled[y][x]) count++;
+    for (int x=currentX, p=0; x<numCols; x++, p++) {
+      currProgress = currentY * numCols + x;
+      tile.store(p, row[x]);
+      double newRCSE = tile.getReducedChiSquaredError(p);
+      if (newRCSE < rcseCache[currentY][x]) {
+        double[][] curve = row[x].getCurve();
+        double[] exponentials = new double[numExponentials];
+        for (int i = 0; i < numExponentials; i++) {
+          exponentials[i] = curve[i][1];
+        }
+        Arrays.sort(exponentials);
+        for (int c = 0; c < numExponentials; c++) {
+          image[numExponentials-c-1][currentY * numCols + x] =
+            exponentials[c];
+        }
       }
+      rcseCache[currentY][x] = newRCSE;
     }
-    stallCount = count;
-  }
-
-  public boolean[][] getMask() {
-    return mask;
-  }
-
-  public int getImageX() {
-    int sizeX = currentCurves[0].length;
-    return currentX * numCols / sizeX;
-  }
-
-  public int getImageY() {
-    int sizeY = currentCurves.length;
-    return currentY * numRows / sizeY;
-  }
-
-  public double getTotalRCSE() {
-    return totalRCSE;
+    currentX = numCols;
   }
 
-  public double getWorstRCSE() {
-    return worstRCSE;
+  /**
+   * Fills the queue with every unstalled pixel within the mask, and
+   * recomputes the total RCSE.
+   */
+  private void rebuildQueue() {
+    queueStale = false;
+    if (queue == null) queue = new PixelHeap(numRows * numCols);
+    else queue.clear();
+    boolean[][] m = mask;
+    double total = 0;
+    for (int y = 0; y < numRows; y++) {
+      for (int x = 0; x < numCols; x++) {
+        total += rcseCache[y][x];
+        if ((m == null || m[y][x]) && !stalled[y][x]) {
+          queue.update(y * numCols + x, rcseCache[y][x]);
+        }
+      }
+    }
+    totalRCSE = total;
   }
 
 }
@@ -24,14 +24,18 @@
 
 package loci.slim.fit;
 
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Data structure for managing a collection of curves. The main purpose of this
  * structure is to create subsampled curve sets at a resolution for each order
  * of magnitude&mdash;e.g., for a 256 x 256 image, the collection constructs
  * 128 x 128, 64 x 64, 32 x 32, 16 x 16, 8 x 8, 4 x 4, 2 x 2 and 1 x 1
- * subsampled images&mdash;by summing neighboring curves.
+ * subsampled images&mdash;by summing neighboring curves. Each subsampling is
+ * computed the first time it is requested, and may be released again once
+ * it is no longer needed.
  *
  * @author Curtis Rueden
  */
@@ -49,25 +53,51 @@ public class CurveCollection implements CurveReporter {
   /** Total number of samplings, counting full-resolution image. */
   protected int depth;
 
-  /** Curve fit data, dimensioned [maxDepth][numRows][numCols]. */
+  /**
+   * Curve fit data, dimensioned [maxDepth][numRows][numCols].
+   * Subsamplings not yet computed are null.
+   */
   protected ICurveFitter[][][] curves;
 
+  /** Number of threads used to compute subsamplings. */
+  protected int threadCount;
+
   // -- Constructors --
 
   /**
    * Creates an object to manage a collection of curves for the given data.
    *
-   * @param data Data array dimensioned [numRows][numCols][timeBins].
+   * @param data Data cube containing the raw photon counts.
+   * @param channel Spectral channel of the data cube to use.
    * @param curveFitterClass Class representing the type of curve fitters to
    *   use (e.g., loci.slim.fit.GACurveFitter or loci.slim.fit.LMCurveFitter).
    * @param binRadius Radius of neighboring pixels to bin,
    *   to improve signal-to-noise ratio.
    */
-  public CurveCollection(int[][][] data, Class curveFitterClass,
-    int binRadius, int firstIndex, int lastIndex)
+  public CurveCollection(DataCube data, int channel,
+    Class<? extends ICurveFitter> curveFitterClass, int binRadius,
+    int firstIndex, int lastIndex)
   {
-    this(makeCurveFitters(data, curveFitterClass,
-      binRadius, firstIndex, lastIndex));
+    this(data, channel, curveFitterClass, binRadius, firstIndex, lastIndex,
+      null, Workers.getDefaultThreadCount());
+  }
+
+  /**
+   * Creates an object to manage a collection of curves for the given data,
+   * using the given number of threads to bin and subsample the curves.
+   *
+   * @param listener Listener to register before binning begins, so that it
+   *   is notified of binning progress, or null.
+   * @see #CurveCollection(DataCube, int, Class, int, int, int)
+   */
+  public CurveCollection(DataCube data, int channel,
+    Class<? extends ICurveFitter> curveFitterClass, int binRadius,
+    int firstIndex, int lastIndex, CurveListener listener, int threads)
+  {
+    if (listener != null) addCurveListener(listener);
+    setThreadCount(threads);
+    init(makeCurveFitters(data, channel, curveFitterClass,
+      binRadius, firstIndex, lastIndex, threads, this));
   }
 
   /**
@@ -76,78 +106,31 @@ public class CurveCollection implements CurveReporter {
    * @param curveFitters Array of curve fitters dimensioned [numRows][numCols].
    */
   public CurveCollection(ICurveFitter[][] curveFitters) {
-    numRows = curveFitters.length;
-    numCols = curveFitters[0].length;
-    int max = numRows > numCols ? numRows : numCols;
-    double log = Math.log(max) / LOG2;
-    depth = (int) log;
-    curves = new ICurveFitter[depth + 1][][];
-    curves[0] = curveFitters;
+    setThreadCount(Workers.getDefaultThreadCount());
+    init(curveFitters);
   }
 
   // -- CurveCollection methods --
 
-  /** Computes subsamplings. */
+  /**
+   * Computes all subsamplings up front. Calling this method is optional;
+   * each subsampling is otherwise computed the first time it is requested.
+   */
   public void computeCurves() {
-    Class curveFitterClass = curves[0][0][0].getClass();
-    int numExp = curves[0][0][0].getComponentCount();
-    int xRes = numCols, yRes = numRows;
-    int value = 0, max = numCols * numRows / 3;
-    for (int d=1; d<=depth; d++) {
-      xRes /= 2;
-      yRes /= 2;
-      if (xRes < 1) xRes = 1;
-      if (yRes < 1) yRes = 1;
-      curves[d] = new ICurveFitter[yRes][xRes];
-      ICurveFitter[][] lastCurve = curves[d - 1];
-      for (int y=0; y<yRes; y++) {
-        int yy0 = 2 * y;
-        int yy1 = 2 * y + 1;
-        if (yy0 >= lastCurve.length) yy0 = lastCurve.length - 1;
-        if (yy1 >= lastCurve.length) yy1 = lastCurve.length - 1;
-        ICurveFitter[] lastCurve0 = lastCurve[yy0];
-        ICurveFitter[] lastCurve1 = lastCurve[yy1];
-        for (int x=0; x<xRes; x++) {
-          int xx0y0 = 2 * x;
-          int xx1y0 = 2 * x + 1;
-          int xx0y1 = 2 * x;
-          int xx1y1 = 2 * x + 1;
-          if (xx0y0 >= lastCurve0.length) xx0y0 = lastCurve0.length - 1;
-          if (xx0y1 >= lastCurve1.length) xx0y1 = lastCurve1.length - 1;
-          if (xx1y0 >= lastCurve0.length) xx1y0 = lastCurve0.length - 1;
-          if (xx1y1 >= lastCurve1.length) xx1y1 = lastCurve1.length - 1;
-          ICurveFitter cf0 = lastCurve0[xx0y0];
-          ICurveFitter cf1 = lastCurve0[xx1y0];
-          ICurveFitter cf2 = lastCurve1[xx0y1];
-          ICurveFitter cf3 = lastCurve1[xx1y1];
-          int[] data0 = cf0.getData();
-          int[] data1 = cf1.getData();
-          int[] data2 = cf2.getData();
-          int[] data3 = cf3.getData();
-          int first0 = cf0.getFirst();
-          int first1 = cf1.getFirst();
-          int first2 = cf2.getFirst();
-          int first3 = cf3.getFirst();
-          int last0 = cf0.getLast();
-          int last1 = cf1.getLast();
-          int last2 = cf2.getLast();
-          int last3 = cf3.getLast();
-          int[] data = new int[data0.length];
-          for (int i=0; i<data.length; i++) {
-            data[i] = data0[i] + data1[i] + data2[i] + data3[i];
-          }
-          int first = (first0 + first1 + first2 + first3) / 4;
-          int last = (last0 + last1 + last2 + last3) / 4;
-          ICurveFitter cf = newCurveFitter(curveFitterClass);
-          cf.setData(data, first, last);
-          cf.setComponentCount(numExp);
-          curves[d][y][x] = cf;
-          fireCurveEvent(new CurveEvent(this, value++, max, null));
-        }
-      }
+    getCurves(getSubsamplingDepth());
+  }
+
+  /** Sets the number of threads used to compute subsamplings. */
+  public void setThreadCount(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid thread count: " + threads);
     }
+    threadCount = threads;
   }
 
+  /** Gets the number of threads used to compute subsamplings. */
+  public int getThreadCount() { return threadCount; }
+
   /** Gets the full Y resolution. */
   public int getNumRows() { return numRows; }
 
@@ -165,14 +148,32 @@ public class CurveCollection implements CurveReporter {
    * @throws IllegalArgumentException
    *   if the subsampling depth is greater than {@link #getSubsamplingDepth}
    */
-  public ICurveFitter[][] getCurves(int depth) {
+  public synchronized ICurveFitter[][] getCurves(int depth) {
     if (depth < 0 || depth > getSubsamplingDepth()) {
       throw new IllegalArgumentException("Invalid subsampling depth " +
         "(expected 0 <= depth <= " + getSubsamplingDepth());
     }
+    if (curves[depth] == null) {
+      ICurveFitter[][] lastCurve = getCurves(depth - 1);
+      curves[depth] = subsample(lastCurve, depth);
+    }
     return curves[depth];
   }
 
+  /**
+   * Discards the subsampling at the given depth, to free memory once it is
+   * no longer needed; it is recomputed if requested again. The full
+   * resolution curves at depth 0 are never discarded.
+   */
+  public synchronized void releaseCurves(int depth) {
+    if (depth > 0 && depth < curves.length) curves[depth] = null;
+  }
+
+  /** Gets whether the subsampling at the given depth is currently computed. */
+  public synchronized boolean hasCurves(int depth) {
+    return depth >= 0 && depth < curves.length && curves[depth] != null;
+  }
+
   /**
    * Gets the maximum subsampling depth of the curve collection. For example,
    * for a 250 x 200 image, the depth is 8 because there exist samplings at
@@ -184,7 +185,7 @@ public class CurveCollection implements CurveReporter {
    * Sets how many exponentials are expected to be fitted.
    * Currently, more than 2 is not supported.
    */
-  public void setComponentCount(int numExp) {
+  public synchronized void setComponentCount(int numExp) {
     for (int d=0; d<curves.length; d++) {
       if (curves[d] == null) continue;
       for (int y=0; y<curves[d].length; y++) {
@@ -197,8 +198,9 @@ public class CurveCollection implements CurveReporter {
   }
 
   /** Sets which parameters should be fixed, versus allowed to converge. */
-  public void setFixed(boolean[][] fixed) {
+  public synchronized void setFixed(boolean[][] fixed) {
     for (int d=0; d<curves.length; d++) {
+      if (curves[d] == null) continue;
       for (int y=0; y<curves[d].length; y++) {
         for (int x=0; x<curves[d][y].length; x++) {
           curves[d][y][x].setFixed(fixed);
@@ -237,54 +239,258 @@ public class CurveCollection implements CurveReporter {
 
   // -- Utility methods --
 
-  /** Creates a list of curve fitters using the given data as a source. */
-  public static ICurveFitter[][] makeCurveFitters(int[][][] data,
-    Class curveFitterClass, int binRadius, int firstIndex, int lastIndex)
+  /**
+   * Creates a list of curve fitters using the given data as a source.
+   * Neighboring pixels are binned using running sums, first down each column
+   * and then along each row, so the cost does not depend on the bin radius.
+   * Rows are divided among worker threads. Unbinned curves are not copied;
+   * their fitters read them from the data cube when needed.
+   */
+  public static ICurveFitter[][] makeCurveFitters(DataCube data,
+    int channel, Class<? extends ICurveFitter> curveFitterClass,
+    int binRadius, int firstIndex, int lastIndex)
+  {
+    return makeCurveFitters(data, channel, curveFitterClass, binRadius,
+      firstIndex, lastIndex, Workers.getDefaultThreadCount(), null);
+  }
+
+  /**
+   * Creates a list of curve fitters using the given data as a source,
+   * binning rows on the given number of threads.
+   *
+   * @param reporter Reporter through which to fire an event as each row of
+   *   curves is completed, or null.
+   */
+  public static ICurveFitter[][] makeCurveFitters(final DataCube data,
+    final int channel, final Class<? extends ICurveFitter> curveFitterClass,
+    final int binRadius, final int firstIndex, final int lastIndex, int threads,
+    final CurveReporter reporter)
   {
-    int numRows = data.length;
-    int numCols = data[0].length;
-    int timeBins = data[0][0].length;
-
-    if (binRadius > 0) {
-      // we need to bin neighboring pixels; make a copy of the data (*sigh*)
-      int[][][] binnedData = new int[numRows][numCols][timeBins];
-      for (int y=0; y<numRows; y++) {
-        for (int x=0; x<numCols; x++) {
-          for (int t=0; t<timeBins; t++) {
-            int sum = 0;
-            int yLo = y - binRadius, yHi = y + binRadius;
-            if (yLo < 0) yLo = 0;
-            if (yHi > numRows - 1) yHi = numRows - 1;
-            for (int dy=yLo; dy<=yHi; dy++) {
-              int xLo = x - binRadius, xHi = x + binRadius;
-              if (xLo < 0) xLo = 0;
-              if (xHi > numCols - 1) xHi = numCols - 1;
-              for (int dx=xLo; dx<=xHi; dx++) sum += data[dy][dx][t];
+    final int numRows = data.getRows();
+    final int numCols = data.getCols();
+    final int timeBins = data.getBins();
+
+    final ICurveFitter[][] curveFitters = new ICurveFitter[numRows][numCols];
+    threads = Math.max(1, Math.min(threads, numRows));
+    // each band of rows pays to sum its first neighborhood from scratch,
+    // so use only a few bands per thread
+    final int bandRows = (numRows + 4 * threads - 1) / (4 * threads);
+    final int bands = (numRows + bandRows - 1) / bandRows;
+    final AtomicInteger nextBand = new AtomicInteger();
+    final AtomicInteger rowsDone = new AtomicInteger();
+    Workers.runPooled(new Runnable() {
+      public void run() {
+        // column sums over the current row's neighborhood, [numCols][bins]
+        int[][] colSums = binRadius > 0 ? new int[numCols][timeBins] : null;
+        int[] buf = new int[timeBins];
+        while (true) {
+          int band = nextBand.getAndIncrement();
+          if (band >= bands) break;
+          int y0 = band * bandRows;
+          int y1 = Math.min(y0 + bandRows, numRows);
+          for (int y=y0; y<y1; y++) {
+            if (binRadius > 0) {
+              binRow(data, channel, binRadius, y, y == y0, colSums, buf);
+            }
+            int[] curve = null;
+            for (int x=0; x<numCols; x++) {
+              ICurveFitter cf = newCurveFitter(curveFitterClass);
+              curveFitters[y][x] = cf;
+              if (binRadius > 0) {
+                curve = binColumn(binRadius, x, colSums, curve);
+                cf.setData(curve, firstIndex, lastIndex);
+              }
+              else if (cf instanceof CurveFitter) {
+                // unbinned curves are read from the cube when needed
+                ((CurveFitter) cf).setData(data, channel, y, x,
+                  firstIndex, lastIndex);
+              }
+              else {
+                cf.setData(data.getCurve(channel, y, x, null),
+                  firstIndex, lastIndex);
+              }
+            }
+            if (reporter != null) {
+              reporter.fireCurveEvent(new CurveEvent(reporter,
+                rowsDone.incrementAndGet(), numRows, null));
             }
-            binnedData[y][x][t] = sum;
           }
         }
       }
-      data = binnedData;
-    }
-
-    ICurveFitter[][] curveFitters = new ICurveFitter[numRows][numCols];
-    for (int y=0; y<numRows; y++) {
-      for (int x=0; x<numCols; x++) {
-        curveFitters[y][x] = newCurveFitter(curveFitterClass);
-        curveFitters[y][x].setData(data[y][x], firstIndex, lastIndex);
-      }
-    }
+    }, threads);
     return curveFitters;
   }
 
-  public static ICurveFitter newCurveFitter(Class c) {
+  /**
+   * Creates a batch fitter that fits the same model and objective as the
+   * given type of curve fitter, or returns null if there is none.
+   */
+  public static IBatchCurveFitter newBatchCurveFitter(Class<?> c) {
+    if (c == FastLMCurveFitter.class) return new BatchLMCurveFitter();
+    return null;
+  }
+
+  public static ICurveFitter newCurveFitter(
+    Class<? extends ICurveFitter> c)
+  {
     try {
-      return (ICurveFitter) c.newInstance();
+      return c.newInstance();
     }
     catch (InstantiationException exc) { exc.printStackTrace(System.out); }
     catch (IllegalAccessException exc) { exc.printStackTrace(System.out); }
     return null;
   }
 
+  // -- Helper methods --
+
+  /** Initializes the collection with the given full resolution curves. */
+  private void init(ICurveFitter[][] curveFitters) {
+    numRows = curveFitters.length;
+    numCols = curveFitters[0].length;
+    int max = numRows > numCols ? numRows : numCols;
+    double log = Math.log(max) / LOG2;
+    depth = (int) log;
+    curves = new ICurveFitter[depth + 1][][];
+    curves[0] = curveFitters;
+  }
+
+  /**
+   * Computes a subsampling at the given depth by summing each 2 x 2 block of
+   * curves in the next finer subsampling. Rows are divided among threads.
+   */
+  private ICurveFitter[][] subsample(final ICurveFitter[][] lastCurve,
+    int d)
+  {
+    final Class<? extends ICurveFitter> curveFitterClass =
+      curves[0][0][0].getClass();
+    final int numExp = curves[0][0][0].getComponentCount();
+    final boolean[][] fixed = curves[0][0][0].getFixed();
+    int xRes = numCols >> d, yRes = numRows >> d;
+    if (xRes < 1) xRes = 1;
+    if (yRes < 1) yRes = 1;
+    final ICurveFitter[][] level = new ICurveFitter[yRes][xRes];
+    final AtomicInteger nextRow = new AtomicInteger();
+    final AtomicInteger rowsDone = new AtomicInteger();
+    Workers.runPooled(new Runnable() {
+      public void run() {
+        while (true) {
+          int y = nextRow.getAndIncrement();
+          if (y >= level.length) break;
+          subsampleRow(lastCurve, level[y], y,
+            curveFitterClass, numExp, fixed);
+          fireCurveEvent(new CurveEvent(CurveCollection.this,
+            rowsDone.incrementAndGet(), level.length, null));
+        }
+      }
+    }, Math.min(threadCount, yRes));
+    return level;
+  }
+
+  /** Computes one row of a subsampling from the next finer subsampling. */
+  private static void subsampleRow(ICurveFitter[][] lastCurve,
+    ICurveFitter[] row, int y, Class<? extends ICurveFitter> curveFitterClass,
+    int numExp, boolean[][] fixed)
+  {
+    int yy0 = 2 * y;
+    int yy1 = 2 * y + 1;
+    if (yy0 >= lastCurve.length) yy0 = lastCurve.length - 1;
+    if (yy1 >= lastCurve.length) yy1 = lastCurve.length - 1;
+    ICurveFitter[] lastCurve0 = lastCurve[yy0];
+    ICurveFitter[] lastCurve1 = lastCurve[yy1];
+    for (int x=0; x<row.length; x++) {
+      int xx0y0 = 2 * x;
+      int xx1y0 = 2 * x + 1;
+      int xx0y1 = 2 * x;
+      int xx1y1 = 2 * x + 1;
+      if (xx0y0 >= lastCurve0.length) xx0y0 = lastCurve0.length - 1;
+      if (xx0y1 >= lastCurve1.length) xx0y1 = lastCurve1.length - 1;
+      if (xx1y0 >= lastCurve0.length) xx1y0 = lastCurve0.length - 1;
+      if (xx1y1 >= lastCurve1.length) xx1y1 = lastCurve1.length - 1;
+      ICurveFitter cf0 = lastCurve0[xx0y0];
+      ICurveFitter cf1 = lastCurve0[xx1y0];
+      ICurveFitter cf2 = lastCurve1[xx0y1];
+      ICurveFitter cf3 = lastCurve1[xx1y1];
+      int[] data0 = cf0.getData();
+      int[] data1 = cf1.getData();
+      int[] data2 = cf2.getData();
+      int[] data3 = cf3.getData();
+      int[] data = new int[data0.length];
+      for (int i=0; i<data.length; i++) {
+        data[i] = data0[i] + data1[i] + data2[i] + data3[i];
+      }
+      int first = (cf0.getFirst() + cf1.getFirst() +
+        cf2.getFirst() + cf3.getFirst()) / 4;
+      int last = (cf0.getLast() + cf1.getLast() +
+        cf2.getLast() + cf3.getLast()) / 4;
+      ICurveFitter cf = newCurveFitter(curveFitterClass);
+      cf.setData(data, first, last);
+      cf.setComponentCount(numExp);
+      if (fixed != null) cf.setFixed(fixed);
+      row[x] = cf;
+    }
+  }
+
+  /**
+   * Updates the column sums to cover the neighborhood of the given row,
+   * either from scratch or by sliding down from the previous row.
+   */
+  private static void binRow(DataCube data, int channel, int binRadius,
+    int y, boolean reset, int[][] colSums, int[] buf)
+  {
+    int numRows = data.getRows();
+    int numCols = colSums.length;
+    if (reset) {
+      int yLo = Math.max(y - binRadius, 0);
+      int yHi = Math.min(y + binRadius, numRows - 1);
+      for (int x=0; x<numCols; x++) {
+        Arrays.fill(colSums[x], 0);
+        for (int dy=yLo; dy<=yHi; dy++) {
+          data.addCurve(channel, dy, x, colSums[x]);
+        }
+      }
+      return;
+    }
+    int yAdd = y + binRadius, yRemove = y - binRadius - 1;
+    for (int x=0; x<numCols; x++) {
+      int[] sum = colSums[x];
+      if (yAdd < numRows) data.addCurve(channel, yAdd, x, sum);
+      if (yRemove >= 0) {
+        data.getCurve(channel, yRemove, x, buf);
+        for (int t=0; t<sum.length; t++) sum[t] -= buf[t];
+      }
+    }
+  }
+
+  /**
+   * Computes the binned curve at the given column of the current row,
+   * from scratch or by sliding right from the previous column's curve.
+   */
+  private static int[] binColumn(int binRadius, int x,
+    int[][] colSums, int[] prev)
+  {
+    int numCols = colSums.length;
+    int timeBins = colSums[0].length;
+    int[] curve = new int[timeBins];
+    if (prev == null) {
+      int xLo = Math.max(x - binRadius, 0);
+      int xHi = Math.min(x + binRadius, numCols - 1);
+      for (int dx=xLo; dx<=xHi; dx++) {
+        int[] sum = colSums[dx];
+        for (int t=0; t<timeBins; t++) curve[t] += sum[t];
+      }
+      return curve;
+    }
+    System.arraycopy(prev, 0, curve, 0, timeBins);
+    int xAdd = x + binRadius, xRemove = x - binRadius - 1;
+    if (xAdd < numCols) {
+      int[] sum = colSums[xAdd];
+      for (int t=0; t<timeBins; t++) curve[t] += sum[t];
+    }
+    if (xRemove >= 0) {
+      int[] sum = colSums[xRemove];
+      for (int t=0; t<timeBins; t++) curve[t] -= sum[t];
+    }
+    return curve;
+  }
+
 }
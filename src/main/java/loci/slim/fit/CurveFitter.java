@@ -35,16 +35,40 @@ public abstract class CurveFitter implements ICurveFitter {
 
   protected static final boolean DEBUG = false;
 
+  /** Per-thread buffer into which data held by a data cube is read. */
+  private static final ThreadLocal<int[]> DATA_BUFFER =
+    new ThreadLocal<int[]>();
+
   // -- Fields --
 
   protected int components;
   protected int[] curveData;
+
+  /**
+   * Data cube holding the data in place of curveData, or null. The data is
+   * read from the given pixel of the cube whenever it is needed.
+   */
+  protected DataCube dataCube;
+  protected int dataChannel, dataRow, dataCol;
   protected double[][] curveEstimate;
   protected boolean[][] curveFixed;
   protected int firstIndex;
   protected int lastIndex;
   protected double currentRCSE;
 
+  /** Chi-squared error of the current curve estimate, if still valid. */
+  protected double currentChiSquared;
+
+  /** Whether currentChiSquared and currentRCSE match the curve estimate. */
+  protected boolean errorValid;
+
+  /**
+   * Number of times the cached error values have been invalidated, so that
+   * errors computed by another thread meanwhile are not cached. Guarded by
+   * this curve fitter's lock, as are errorValid and the cached errors.
+   */
+  private int errorVersion;
+
   // -- ICurveFitter API methods --
 
   /**
@@ -57,22 +81,54 @@ public abstract class CurveFitter implements ICurveFitter {
   /** Returns the number of iterations so far. */
   public abstract int getIterations();
 
-  /** Returns the Chi Squared Error of the current curve estimate. */
+  /**
+   * Returns the Chi Squared Error of the current curve estimate.
+   * The value is cached until the estimate, data or fixed mask changes.
+   */
   public double getChiSquaredError() {
-    return getChiSquaredError(curveEstimate);
+    synchronized (this) {
+      if (errorValid) return currentChiSquared;
+    }
+    return updateError();
   }
 
+  /**
+   * Computes the chi-squared error of the given curve estimate, evaluating
+   * the expected curve on the fly rather than materializing it. Exponentials
+   * are advanced by recurrence, e^(-b(t+1)) = e^(-bt) * e^(-b), so only one
+   * call to Math.exp is made per component.
+   */
   public double getChiSquaredError(double[][] estCurve) {
+    int dataPoints = lastIndex - firstIndex + 1;
+    int numExp = estCurve.length;
+    if (numExp > 2) return getChiSquaredError(getEstimates(estCurve));
+    int[] data = readData();
+
+    // offsets of all components combine into a single constant term
+    double c = 0;
+    for (int j=0; j<numExp; j++) c += estCurve[j][2];
+    double a0 = 0, q0 = 1, e0 = 1;
+    double a1 = 0, q1 = 1, e1 = 1;
+    if (numExp > 0) {
+      a0 = estCurve[0][0];
+      q0 = Math.exp(-estCurve[0][1]);
+    }
+    if (numExp > 1) {
+      a1 = estCurve[1][0];
+      q1 = Math.exp(-estCurve[1][1]);
+    }
+
     double total = 0;
-    double[] expected = getEstimates(estCurve);
-    for (int i = 0; i < expected.length; i++) {
-      double o = curveData[firstIndex + i];
-      double e = expected[i];
+    for (int i=0; i<dataPoints; i++) {
+      double e = c + a0 * e0 + a1 * e1;
 
       // penalize NaNs and zeroes harshly ;-)
       if (e != e || e == 0) return Double.POSITIVE_INFINITY;
 
-      total += (o - e) * (o - e) / e;
+      double r = data[firstIndex + i] - e;
+      total += r * r / e;
+      e0 *= q0;
+      e1 *= q1;
     }
     return total;
   }
@@ -81,9 +137,13 @@ public abstract class CurveFitter implements ICurveFitter {
    * Returns the Reduced Chi Squared Error of the current curve estimate
    * This is based on the number of dataPoints in data and the number
    * of exponentials in setComponentCount.
+   * The value is cached until the estimate, data or fixed mask changes.
    */
   public double getReducedChiSquaredError() {
-    return getReducedChiSquaredError(curveEstimate);
+    synchronized (this) {
+      if (errorValid) return currentRCSE;
+    }
+    return reduce(updateError());
   }
 
   public double getReducedChiSquaredError(double[][] estCurve) {
@@ -100,23 +160,19 @@ public abstract class CurveFitter implements ICurveFitter {
     int dataPoints = lastIndex - firstIndex + 1;
     if (dataPoints < 0) dataPoints = 0;
     double[] toReturn = new double[dataPoints];
-    for (int i = 0; i < dataPoints; i++) {
-      double value = 0;
-      for (int j = 0; j < estimate.length; j++) {
-        // e^-bt
-        double term = Math.exp(-estimate[j][1] * i);
-        // ae^-bt
-        term *= estimate[j][0];
+    for (int j = 0; j < estimate.length; j++) {
+      // e^-bt, advanced by recurrence
+      double decay = Math.exp(-estimate[j][1]);
+      double term = 1;
+      for (int i = 0; i < dataPoints; i++) {
         // ae^-bt + c
-        term += estimate[j][2];
-        value += term;
+        toReturn[i] += estimate[j][0] * term + estimate[j][2];
+        term *= decay;
       }
-      toReturn[i] = value;
     }
     return toReturn;
   }
 
-
   /**
    * Sets the data to be used to generate curve estimates.
    * Single dimension of data... time values are index, since
@@ -128,6 +184,7 @@ public abstract class CurveFitter implements ICurveFitter {
 
   public void setData(int[] data, int first, int last) {
     curveData = data;
+    dataCube = null;
     if (first < 0) {
       // autodetect start of curve based on peak
       int maxValue = Integer.MIN_VALUE;
@@ -140,14 +197,35 @@ public abstract class CurveFitter implements ICurveFitter {
     }
     firstIndex = first;
     lastIndex = last;
+    invalidateError();
+  }
+
+  /**
+   * Sets the data to be read from the given pixel of a data cube whenever
+   * it is needed, rather than copied and kept by this curve fitter.
+   * The cube must not change while the curve fitter is in use.
+   */
+  public void setData(DataCube cube, int c, int y, int x,
+    int first, int last)
+  {
+    setData(cube.getCurve(c, y, x, null), first, last);
+    curveData = null;
+    dataCube = cube;
+    dataChannel = c;
+    dataRow = y;
+    dataCol = x;
   }
 
   /**
    * Gets the data to be used to generate curve estimates.
    * Single dimension of data... time values are index, since
    * we can assume that the dataPoints are evenly spaced.
+   * If the data is held by a data cube, a new copy is returned.
    */
-  public int[] getData() { return curveData; }
+  public int[] getData() {
+    if (curveData != null || dataCube == null) return curveData;
+    return dataCube.getCurve(dataChannel, dataRow, dataCol, null);
+  }
 
   public int getFirst() { return firstIndex; }
 
@@ -164,6 +242,7 @@ public abstract class CurveFitter implements ICurveFitter {
     components = numExp;
     curveEstimate = new double[numExp][3];
     curveFixed = new boolean[numExp][3];
+    invalidateError();
   }
 
   /** Returns the number of exponentials to be fitted. */
@@ -179,6 +258,7 @@ public abstract class CurveFitter implements ICurveFitter {
           "Incorrect number of elements per degree.");
     }
     curveFixed = fixed;
+    invalidateError();
   }
 
   /* @see ICurveFitter#getFixed() */
@@ -200,6 +280,8 @@ public abstract class CurveFitter implements ICurveFitter {
       if (!curveFixed[i][2]) curveEstimate[i][2] = 0;
     }
 */
+    // read data held by a data cube only once
+    int[] curveData = getData();
     if (DEBUG) {
       System.out.println("****** DATA ******");
       for (int i = 0; i < curveData.length; i++) {
@@ -470,7 +552,8 @@ public abstract class CurveFitter implements ICurveFitter {
     }
 
     // To update currentRCSE.
-    currentRCSE = getReducedChiSquaredError();
+    invalidateError();
+    updateError();
     if (DEBUG) {
       if (curveEstimate[0][0] != curveEstimate[0][0] ||
         curveEstimate[0][1] != curveEstimate[0][1] ||
@@ -523,7 +606,98 @@ public abstract class CurveFitter implements ICurveFitter {
           "Incorrect number of elements per degree.");
     }
     curveEstimate = curve;
-    currentRCSE = getReducedChiSquaredError();
+    invalidateError();
+    updateError();
+  }
+
+  // -- Internal CurveFitter methods --
+
+  /**
+   * Marks the cached error values as stale. Subclasses must call this
+   * whenever they modify the curve estimate in place, after modifying it.
+   */
+  protected synchronized void invalidateError() {
+    errorValid = false;
+    errorVersion++;
+  }
+
+  /**
+   * Gets the data without copying it, unless it is held by a data cube, in
+   * which case it is read into a buffer belonging to the calling thread.
+   * The result is only valid until the thread next reads data this way.
+   */
+  protected int[] readData() {
+    if (curveData != null || dataCube == null) return curveData;
+    int bins = dataCube.getBins();
+    int[] buf = DATA_BUFFER.get();
+    if (buf == null || buf.length < bins) {
+      buf = new int[bins];
+      DATA_BUFFER.set(buf);
+    }
+    return dataCube.getCurve(dataChannel, dataRow, dataCol, buf);
+  }
+
+  /**
+   * Keeps a copy of data held by a data cube until {@link #releaseData()},
+   * so that it is not read again by every error computation in between.
+   * Error computations may then run on several threads at once.
+   */
+  protected void holdData() {
+    if (dataCube != null && curveData == null) curveData = getData();
+  }
+
+  /** Discards the copy of the data kept by {@link #holdData()}. */
+  protected void releaseData() {
+    if (dataCube != null) curveData = null;
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Recomputes the error values of the current curve estimate, caching them
+   * unless they were invalidated meanwhile, as they may be when another
+   * thread is iterating this curve fitter.
+   *
+   * @return the chi-squared error
+   */
+  private double updateError() {
+    int version;
+    synchronized (this) {
+      version = errorVersion;
+    }
+    double chiSquared = getChiSquaredError(curveEstimate);
+    synchronized (this) {
+      if (version == errorVersion) {
+        currentChiSquared = chiSquared;
+        currentRCSE = reduce(chiSquared);
+        errorValid = true;
+      }
+    }
+    return chiSquared;
+  }
+
+  /** Converts the given chi-squared error of the estimate to its RCSE. */
+  private double reduce(double chiSquared) {
+    int numVars = 2 * curveEstimate.length + 1;
+    int degreesOfFreedom = lastIndex - firstIndex + 1 - numVars;
+    return degreesOfFreedom > 0 ?
+      chiSquared / degreesOfFreedom : Double.MAX_VALUE;
+  }
+
+  /** Computes the chi-squared error of the given expected curve. */
+  private double getChiSquaredError(double[] expected) {
+    int[] data = readData();
+    double total = 0;
+    for (int i = 0; i < expected.length; i++) {
+      double o = data[firstIndex + i];
+      double e = expected[i];
+
+      // penalize NaNs and zeroes harshly ;-)
+      if (e != e || e == 0) return Double.POSITIVE_INFINITY;
+
+      total += (o - e) * (o - e) / e;
+    }
+    return total;
   }
 
 }
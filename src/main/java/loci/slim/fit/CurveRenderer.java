@@ -31,9 +31,14 @@ package loci.slim.fit;
  */
 public abstract class CurveRenderer implements ICurveRenderer {
 
+  // -- Constants --
+
+  /** Milliseconds between checks for being stopped, while out of budget. */
+  private static final int BUDGET_POLL = 100;
+
   // -- Fields --
 
-  protected boolean alive;
+  protected volatile boolean alive;
   protected int maxIterations;
   protected double maxRCSE;
   protected int totalIterations;
@@ -47,6 +52,15 @@ public abstract class CurveRenderer implements ICurveRenderer {
   protected int numRows, numCols;
   protected int numExponentials;
 
+  /** Type of curve fitter used to estimate coarse subsampling levels. */
+  protected Class<? extends ICurveFitter> coarseEstimator;
+
+  /** Thread budget shared with other renderers, or null if unlimited. */
+  protected ThreadBudget budget;
+
+  /** Whether this renderer's requests on its budget are prioritized. */
+  protected volatile boolean priority = true;
+
   // -- Constructor --
 
   public CurveRenderer(CurveCollection cc) {
@@ -55,6 +69,74 @@ public abstract class CurveRenderer implements ICurveRenderer {
     numCols = curveData.getNumCols();
   }
 
+  // -- CurveRenderer methods --
+
+  /**
+   * Sets the type of curve fitter used to estimate curves at coarse
+   * subsampling levels, in place of each curve's own fitter. A closed-form
+   * fitter such as {@link RLDCurveFitter} gives a quick preview of the
+   * lifetime image. Full resolution curves are always estimated by their
+   * own fitters, which then go on to iterate. If null, coarse levels are
+   * estimated by their own fitters as well.
+   */
+  public void setCoarseEstimator(
+    Class<? extends ICurveFitter> estimatorClass)
+  {
+    coarseEstimator = estimatorClass;
+  }
+
+  /** Gets the type of curve fitter used to estimate coarse levels. */
+  public Class<? extends ICurveFitter> getCoarseEstimator() {
+    return coarseEstimator;
+  }
+
+  /**
+   * Sets the thread budget this renderer shares with other renderers, or
+   * null to run without limit. Each thread of the renderer holds a permit
+   * from the budget while it works, and the renderer registers as one of
+   * the budget's members. Must not be changed while running.
+   */
+  public void setThreadBudget(ThreadBudget budget) {
+    if (this.budget == budget) return;
+    if (this.budget != null) this.budget.removeMember();
+    this.budget = budget;
+    if (budget != null) budget.addMember();
+  }
+
+  /** Gets the thread budget this renderer shares with other renderers. */
+  public ThreadBudget getThreadBudget() { return budget; }
+
+  /**
+   * Sets whether this renderer takes priority over others sharing its
+   * thread budget. May be changed at any time.
+   */
+  public void setPriority(boolean priority) { this.priority = priority; }
+
+  /** Gets whether this renderer takes priority over others. */
+  public boolean isPriority() { return priority; }
+
+  /**
+   * Gets whether the initial pass is complete, so that the renderer is
+   * only continuing to improve the worst pixels of the image.
+   */
+  public abstract boolean isImproving();
+
+  /**
+   * Skips the initial pass, taking the current full resolution curves
+   * (such as fits saved by an earlier session) as already fitted, so that
+   * the next run continues improving them. Must not be called while the
+   * renderer is running.
+   *
+   * @param iterations Iterations already performed on the curves.
+   */
+  public abstract void restore(int iterations);
+
+  /**
+   * Gets the number of pixels currently judged to be stalled, which are
+   * skipped by continuing improvement until every pixel has stalled.
+   */
+  public abstract int getStallCount();
+
   // -- ICurveRenderer methods --
 
   public CurveCollection getCurveCollection() {
@@ -137,4 +219,54 @@ public abstract class CurveRenderer implements ICurveRenderer {
 
   public abstract double getWorstRCSE();
 
+  // -- Internal CurveRenderer methods --
+
+  /**
+   * Waits for a permit from the thread budget, if there is one, before a
+   * unit of work. Each successful call must be followed by a call to
+   * {@link #releaseBudget()} once the work is done.
+   *
+   * @return false if the renderer was stopped before a permit was acquired
+   */
+  protected boolean acquireBudget() {
+    ThreadBudget b = budget;
+    if (b == null) return alive;
+    while (alive) {
+      if (b.acquire(priority, BUDGET_POLL)) return true;
+      if (Thread.currentThread().isInterrupted()) return false;
+    }
+    return false;
+  }
+
+  /** Returns the permit acquired by {@link #acquireBudget()}, if any. */
+  protected void releaseBudget() {
+    ThreadBudget b = budget;
+    if (b != null) b.release();
+  }
+
+  /**
+   * Gets the number of threads this renderer should keep working at once:
+   * the given count, capped at the renderer's current share of its thread
+   * budget, if any.
+   */
+  protected int getBudgetShare(int threads) {
+    ThreadBudget b = budget;
+    if (b == null) return threads;
+    return Math.min(threads, b.getShare(priority));
+  }
+
+  /**
+   * Creates a curve fitter of the coarse estimator type, with the current
+   * number of components and fixed parameters, or returns null if no
+   * coarse estimator is set.
+   */
+  protected ICurveFitter newCoarseEstimator() {
+    if (coarseEstimator == null) return null;
+    ICurveFitter cf = CurveCollection.newCurveFitter(coarseEstimator);
+    cf.setComponentCount(numExponentials);
+    boolean[][] fixed = curveData.getFixed();
+    if (fixed != null && fixed.length == numExponentials) cf.setFixed(fixed);
+    return cf;
+  }
+
 }
@@ -0,0 +1,229 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+/**
+ * A tile of curves laid out as a structure of arrays, for fitting many
+ * pixels at once with an {@link IBatchCurveFitter}. Each curve's data is
+ * stored relative to its first index, with bins of all curves interleaved
+ * so that a fitter can sweep each time bin across every pixel in turn.
+ */
+public class CurveTile {
+
+  // -- Fields --
+
+  /** Maximum number of curves, and the stride between rows of values. */
+  protected int size;
+
+  /** Maximum number of time bins per curve. */
+  protected int bins;
+
+  /** Number of exponential components fitted to each curve. */
+  protected int components;
+
+  /** Number of curves currently in the tile. */
+  protected int count;
+
+  /** Photon counts, dimensioned [bins][size]. */
+  protected int[] counts;
+
+  /** Original data array of each curve. */
+  protected int[][] data;
+
+  /** Index of each curve's first and last bin within its original data. */
+  protected int[] first, last;
+
+  /** Number of bins used by each curve. */
+  protected int[] length;
+
+  /**
+   * Fitted parameters, dimensioned [2 * components + 1][size]: a1, b1, ...,
+   * an, bn, then c, following the form a1*e^(-b1*t) + ... + c.
+   */
+  protected double[] params;
+
+  /** Reduced chi-squared error of each curve's current parameters. */
+  protected double[] rcse;
+
+  /** Per-curve fitter state, such as a damping factor. */
+  protected double[] state;
+
+  /** Whether each curve is finished, so that fitters leave it alone. */
+  protected boolean[] done;
+
+  /** Number of iterations actually performed on each curve. */
+  protected int[] iterations;
+
+  // -- Constructor --
+
+  /** Creates a tile for the given number of curves of the given length. */
+  public CurveTile(int size, int bins, int components) {
+    if (components < 1 || components > 2) {
+      throw new IllegalArgumentException("Number of degrees must be 1 or 2");
+    }
+    this.size = size;
+    this.bins = bins;
+    this.components = components;
+    counts = new int[bins * size];
+    data = new int[size][];
+    first = new int[size];
+    last = new int[size];
+    length = new int[size];
+    params = new double[(2 * components + 1) * size];
+    rcse = new double[size];
+    state = new double[size];
+    done = new boolean[size];
+    iterations = new int[size];
+  }
+
+  // -- CurveTile methods --
+
+  /** Gets the maximum number of curves in the tile. */
+  public int getSize() { return size; }
+
+  /** Gets the maximum number of time bins per curve. */
+  public int getBins() { return bins; }
+
+  /** Gets the number of exponential components fitted to each curve. */
+  public int getComponentCount() { return components; }
+
+  /** Gets the number of curves currently in the tile. */
+  public int getCount() { return count; }
+
+  /** Gets the number of fitted parameters per curve. */
+  public int getParameterCount() { return 2 * components + 1; }
+
+  /** Removes all curves from the tile. */
+  public void clear() {
+    for (int p=0; p<count; p++) data[p] = null;
+    count = 0;
+  }
+
+  /**
+   * Adds a curve to the tile, with all parameters initially zero.
+   *
+   * @return the index of the curve within the tile
+   */
+  public int add(int[] curve, int firstIndex, int lastIndex) {
+    if (count >= size) throw new IllegalStateException("Tile is full");
+    int p = count++;
+    data[p] = curve;
+    int num = lastIndex - firstIndex + 1;
+    if (num < 0) num = 0;
+    if (num > bins) num = bins;
+    first[p] = firstIndex;
+    last[p] = lastIndex;
+    length[p] = num;
+    for (int t=0; t<num; t++) counts[t * size + p] = curve[firstIndex + t];
+    for (int t=num; t<bins; t++) counts[t * size + p] = 0;
+    for (int k=0; k<getParameterCount(); k++) params[k * size + p] = 0;
+    rcse[p] = Double.MAX_VALUE;
+    state[p] = 0;
+    done[p] = false;
+    iterations[p] = 0;
+    return p;
+  }
+
+  /**
+   * Adds the given fitter's curve to the tile, along with its current
+   * estimate. Component offsets are combined into the single offset c.
+   *
+   * @return the index of the curve within the tile
+   */
+  public int add(ICurveFitter cf) {
+    int p = add(cf.getData(), cf.getFirst(), cf.getLast());
+    double[][] curve = cf.getCurve();
+    double c = 0;
+    for (int i=0; i<components; i++) {
+      params[2 * i * size + p] = curve[i][0];
+      params[(2 * i + 1) * size + p] = curve[i][1];
+      c += curve[i][2];
+    }
+    params[2 * components * size + p] = c;
+    rcse[p] = cf.getReducedChiSquaredError();
+    return p;
+  }
+
+  /** Copies the given curve's parameters back into the given fitter. */
+  public void store(int p, ICurveFitter cf) {
+    double[][] curve = cf.getCurve();
+    for (int i=0; i<components; i++) {
+      curve[i][0] = params[2 * i * size + p];
+      curve[i][1] = params[(2 * i + 1) * size + p];
+      curve[i][2] = 0;
+    }
+    curve[0][2] = params[2 * components * size + p];
+    cf.setCurve(curve);
+  }
+
+  /** Gets the given parameter of the given curve. */
+  public double getParameter(int p, int k) { return params[k * size + p]; }
+
+  /** Sets the given parameter of the given curve. */
+  public void setParameter(int p, int k, double value) {
+    params[k * size + p] = value;
+  }
+
+  /** Gets the reduced chi-squared error of the given curve. */
+  public double getReducedChiSquaredError(int p) { return rcse[p]; }
+
+  /** Sets whether the given curve is finished, so fitters leave it alone. */
+  public void setDone(int p, boolean done) { this.done[p] = done; }
+
+  /** Gets whether the given curve is finished. */
+  public boolean isDone(int p) { return done[p]; }
+
+  /**
+   * Gets the number of iterations performed on the given curve since it
+   * was added, not counting those skipped because it was finished or had
+   * converged.
+   */
+  public int getIterations(int p) { return iterations[p]; }
+
+  /**
+   * Marks each curve whose reduced chi-squared error is below the given
+   * value as finished.
+   *
+   * @return the number of curves not yet finished
+   */
+  public int finish(double maxRCSE) {
+    int remaining = 0;
+    for (int p=0; p<count; p++) {
+      if (!done[p] && rcse[p] < maxRCSE) done[p] = true;
+      if (!done[p]) remaining++;
+    }
+    return remaining;
+  }
+
+  /** Gets the original data array of the given curve. */
+  public int[] getData(int p) { return data[p]; }
+
+  /** Gets the index of the given curve's first bin. */
+  public int getFirst(int p) { return first[p]; }
+
+  /** Gets the index of the given curve's last bin. */
+  public int getLast(int p) { return last[p]; }
+
+}
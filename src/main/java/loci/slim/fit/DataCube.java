@@ -0,0 +1,307 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Dense storage for photon counts, dimensioned [channel][row][column][bin].
+ *
+ * Rather than one small array per pixel, the counts are kept in a handful of
+ * large primitive arrays, with time bins varying fastest. Each chunk holds a
+ * whole number of image rows, so a chunk never exceeds {@link #MAX_CHUNK}
+ * cells and datasets larger than 2^31 cells can still be stored.
+ *
+ * Since nearly all photon histograms fit in 16 bits, a cube can start out
+ * with unsigned 16-bit cells, halving its memory footprint. The first time a
+ * value outside of that range is stored, the cube widens itself to 32-bit
+ * cells.
+ */
+public class DataCube {
+
+  // -- Constants --
+
+  /** Maximum number of cells in a single chunk. */
+  public static final int MAX_CHUNK = 1 << 30;
+
+  /** Size in bytes of the buffer used when writing a cube to disk. */
+  protected static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+  /** Largest count that fits in a 16-bit cell. */
+  public static final int NARROW_MAX = Character.MAX_VALUE;
+
+  // -- Fields --
+
+  /** Dimensional extents. */
+  protected int channels, rows, cols, bins;
+
+  /** Number of cells between neighboring rows, and neighboring pixels. */
+  protected int rowStride, pixelStride;
+
+  /** Number of image rows (counting across channels) per chunk. */
+  protected int chunkRows;
+
+  /** 32-bit count values, dimensioned [chunk][cell], or null if narrow. */
+  protected int[][] chunks;
+
+  /** 16-bit count values, dimensioned [chunk][cell], or null if wide. */
+  protected char[][] narrowChunks;
+
+  // -- Constructors --
+
+  /** Creates a zero-filled data cube with 32-bit cells. */
+  public DataCube(int channels, int rows, int cols, int bins) {
+    this(channels, rows, cols, bins, false);
+  }
+
+  /**
+   * Creates a zero-filled data cube with the given dimensions.
+   *
+   * @param narrow If true, the cube starts out with 16-bit cells,
+   *   widening automatically when a larger value is stored.
+   */
+  public DataCube(int channels, int rows, int cols, int bins,
+    boolean narrow)
+  {
+    this(channels, rows, cols, bins, MAX_CHUNK);
+    int totalRows = channels * rows;
+    int numChunks = (totalRows + chunkRows - 1) / chunkRows;
+    if (narrow) narrowChunks = new char[numChunks][];
+    else chunks = new int[numChunks][];
+    for (int i=0; i<numChunks; i++) {
+      int chunkSize = Math.min(chunkRows, totalRows - i * chunkRows);
+      if (narrow) narrowChunks[i] = new char[chunkSize * rowStride];
+      else chunks[i] = new int[chunkSize * rowStride];
+    }
+  }
+
+  /**
+   * Initializes the dimensions of a data cube whose chunks hold at most the
+   * given number of cells, without allocating any storage.
+   */
+  protected DataCube(int channels, int rows, int cols, int bins,
+    int maxChunk)
+  {
+    if (channels < 1 || rows < 1 || cols < 1 || bins < 1) {
+      throw new IllegalArgumentException("Invalid dimensions: " + channels +
+        " x " + rows + " x " + cols + " x " + bins);
+    }
+    if ((long) cols * bins > maxChunk) {
+      throw new IllegalArgumentException("Row too large: " +
+        cols + " x " + bins);
+    }
+    this.channels = channels;
+    this.rows = rows;
+    this.cols = cols;
+    this.bins = bins;
+    pixelStride = bins;
+    rowStride = cols * bins;
+    chunkRows = Math.min(channels * rows, maxChunk / rowStride);
+  }
+
+  // -- DataCube methods --
+
+  /** Gets the number of spectral channels. */
+  public int getChannels() { return channels; }
+
+  /** Gets the number of image rows. */
+  public int getRows() { return rows; }
+
+  /** Gets the number of image columns. */
+  public int getCols() { return cols; }
+
+  /** Gets the number of time bins per pixel. */
+  public int getBins() { return bins; }
+
+  /** Gets whether the cube currently uses 16-bit cells. */
+  public boolean isNarrow() { return narrowChunks != null; }
+
+  /** Gets whether the given count can be stored without widening. */
+  public boolean fits(int value) {
+    return narrowChunks == null || (value >= 0 && value <= NARROW_MAX);
+  }
+
+  /**
+   * Converts the cube to 32-bit cells, one chunk at a time. Widening must not
+   * overlap with other reads or writes of the cube.
+   */
+  public synchronized void widen() {
+    char[][] narrow = narrowChunks;
+    if (narrow == null) return;
+    int[][] wide = new int[narrow.length][];
+    for (int i=0; i<narrow.length; i++) {
+      char[] src = narrow[i];
+      int[] dest = new int[src.length];
+      for (int j=0; j<src.length; j++) dest[j] = src[j];
+      wide[i] = dest;
+      narrow[i] = null; // release memory as we go
+    }
+    chunks = wide;
+    narrowChunks = null;
+  }
+
+  /** Gets the count at the given position. */
+  public int get(int c, int y, int x, int t) {
+    int row = c * rows + y;
+    char[][] narrow = narrowChunks;
+    if (narrow != null) return narrow[row / chunkRows][offset(row, x) + t];
+    return chunks[row / chunkRows][offset(row, x) + t];
+  }
+
+  /** Sets the count at the given position, widening the cube if needed. */
+  public void set(int c, int y, int x, int t, int value) {
+    int row = c * rows + y;
+    if (narrowChunks != null) {
+      if (value >= 0 && value <= NARROW_MAX) {
+        narrowChunks[row / chunkRows][offset(row, x) + t] = (char) value;
+        return;
+      }
+      widen();
+    }
+    chunks[row / chunkRows][offset(row, x) + t] = value;
+  }
+
+  /**
+   * Copies the histogram of the given pixel into the specified array,
+   * allocating a new one if it is null.
+   */
+  public int[] getCurve(int c, int y, int x, int[] curve) {
+    if (curve == null) curve = new int[bins];
+    int row = c * rows + y;
+    int off = offset(row, x);
+    char[][] narrow = narrowChunks;
+    if (narrow != null) {
+      char[] chunk = narrow[row / chunkRows];
+      for (int t=0; t<bins; t++) curve[t] = chunk[off + t];
+    }
+    else System.arraycopy(chunks[row / chunkRows], off, curve, 0, bins);
+    return curve;
+  }
+
+  /** Adds the histogram of the given pixel into the specified array. */
+  public void addCurve(int c, int y, int x, int[] sum) {
+    int row = c * rows + y;
+    int off = offset(row, x);
+    char[][] narrow = narrowChunks;
+    if (narrow != null) {
+      char[] chunk = narrow[row / chunkRows];
+      for (int t=0; t<bins; t++) sum[t] += chunk[off + t];
+    }
+    else {
+      int[] chunk = chunks[row / chunkRows];
+      for (int t=0; t<bins; t++) sum[t] += chunk[off + t];
+    }
+  }
+
+  /** Subtracts the histogram of the given pixel from the specified array. */
+  public void subtractCurve(int c, int y, int x, int[] sum) {
+    int row = c * rows + y;
+    int off = offset(row, x);
+    char[][] narrow = narrowChunks;
+    if (narrow != null) {
+      char[] chunk = narrow[row / chunkRows];
+      for (int t=0; t<bins; t++) sum[t] -= chunk[off + t];
+    }
+    else {
+      int[] chunk = chunks[row / chunkRows];
+      for (int t=0; t<bins; t++) sum[t] -= chunk[off + t];
+    }
+  }
+
+  /** Gets the total count across all time bins of the given pixel. */
+  public int sumCurve(int c, int y, int x) {
+    int row = c * rows + y;
+    int off = offset(row, x);
+    int sum = 0;
+    char[][] narrow = narrowChunks;
+    if (narrow != null) {
+      char[] chunk = narrow[row / chunkRows];
+      for (int t=0; t<bins; t++) sum += chunk[off + t];
+    }
+    else {
+      int[] chunk = chunks[row / chunkRows];
+      for (int t=0; t<bins; t++) sum += chunk[off + t];
+    }
+    return sum;
+  }
+
+  /**
+   * Delays every histogram of the given channel by the specified number of
+   * time bins, filling the vacated leading bins with zeroes.
+   */
+  public void shift(int c, int shift) {
+    if (shift <= 0) return;
+    int count = Math.min(shift, bins);
+    for (int y=0; y<rows; y++) {
+      int row = c * rows + y;
+      Object chunk = narrowChunks == null ?
+        (Object) chunks[row / chunkRows] : narrowChunks[row / chunkRows];
+      for (int x=0; x<cols; x++) {
+        int off = offset(row, x);
+        if (shift < bins) {
+          System.arraycopy(chunk, off, chunk, off + shift, bins - shift);
+        }
+        if (chunk instanceof int[]) {
+          Arrays.fill((int[]) chunk, off, off + count, 0);
+        }
+        else Arrays.fill((char[]) chunk, off, off + count, (char) 0);
+      }
+    }
+  }
+
+  /**
+   * Writes every cell of the cube to the given channel in native byte order,
+   * using two bytes per cell if the cube is narrow and four otherwise.
+   */
+  public void write(WritableByteChannel out) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    buf.order(ByteOrder.nativeOrder());
+    int numChunks = isNarrow() ? narrowChunks.length : chunks.length;
+    for (int i=0; i<numChunks; i++) {
+      int length = isNarrow() ? narrowChunks[i].length : chunks[i].length;
+      int step = buf.capacity() / (isNarrow() ? 2 : 4);
+      for (int off=0; off<length; off+=step) {
+        int count = Math.min(step, length - off);
+        buf.clear();
+        if (isNarrow()) buf.asCharBuffer().put(narrowChunks[i], off, count);
+        else buf.asIntBuffer().put(chunks[i], off, count);
+        buf.limit(count * (isNarrow() ? 2 : 4));
+        while (buf.hasRemaining()) out.write(buf);
+      }
+    }
+  }
+
+  // -- Helper methods --
+
+  /** Gets the offset of the given pixel within its chunk. */
+  protected int offset(int row, int x) {
+    return (row % chunkRows) * rowStride + x * pixelStride;
+  }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+/**
+ * Levenberg-Marquardt curve fitter specialized for sums of exponentials of
+ * the form y(t) = a1*e^(-b1*t) + ... + an*e^(-bn*t) + c.
+ *
+ * Unlike {@link LMCurveFitter}, no fitting objects are created per pixel:
+ * the Jacobian is computed analytically, the normal equations are
+ * accumulated into per-thread buffers shared by all fitters on that thread,
+ * and they are solved in place by Cholesky decomposition. Parameters marked
+ * as fixed are held constant. The least squares objective (unweighted) is
+ * the same as that of {@link LMCurveFitter}.
+ */
+public class FastLMCurveFitter extends CurveFitter {
+
+  // -- Constants --
+
+  /** Maximum number of fitted parameters: two exponentials plus offset. */
+  static final int MAX_PARAMS = 5;
+
+  /** Damping factor used for a freshly estimated curve. */
+  static final double INITIAL_LAMBDA = 0.001;
+
+  /** Factor by which damping changes after each step. */
+  static final double LAMBDA_FACTOR = 10;
+
+  /** Largest damping factor before a fit is considered converged. */
+  static final double MAX_LAMBDA = 1e10;
+
+  /** Number of damped steps tried per iteration before giving up. */
+  static final int MAX_TRIES = 4;
+
+  /** Per-thread scratch space, shared by all fitters on that thread. */
+  private static final ThreadLocal<Workspace> WORKSPACE =
+    new ThreadLocal<Workspace>()
+  {
+    protected Workspace initialValue() { return new Workspace(); }
+  };
+
+  // -- Fields --
+
+  /** Current damping factor. */
+  protected double lambda;
+
+  /** Number of iterations so far. */
+  protected int iterCount;
+
+  // -- Constructor --
+
+  public FastLMCurveFitter() {
+    setComponentCount(1);
+    lambda = INITIAL_LAMBDA;
+  }
+
+  // -- ICurveFitter methods --
+
+  /* @see ICurveFitter#iterate() */
+  public void iterate() {
+    iterCount++;
+    if (lastIndex - firstIndex + 1 <= 0) return;
+    Workspace ws = WORKSPACE.get();
+
+    // gather current parameters, noting which ones are free
+    double[] p = ws.params;
+    int[] free = ws.free;
+    int numFree = 0;
+    double offset = 0;
+    for (int i=0; i<components; i++) {
+      p[2 * i] = curveEstimate[i][0];
+      p[2 * i + 1] = curveEstimate[i][1];
+      if (!curveFixed[i][0]) free[numFree++] = 2 * i;
+      if (!curveFixed[i][1]) free[numFree++] = 2 * i + 1;
+      if (i > 0) offset += curveEstimate[i][2];
+    }
+    int c = 2 * components;
+    p[c] = curveEstimate[0][2];
+    if (!curveFixed[0][2]) free[numFree++] = c;
+    if (numFree == 0) return;
+
+    int[] data = readData();
+    double chi2 = accumulate(data, p, offset, free, numFree, ws);
+    if (chi2 != chi2 || chi2 == Double.POSITIVE_INFINITY) return;
+
+    double[][] alpha = ws.alpha;
+    double[][] work = ws.work;
+    double[] beta = ws.beta, step = ws.step, trial = ws.trial;
+    for (int tries=0; tries<MAX_TRIES && lambda < MAX_LAMBDA; tries++) {
+      // damp the diagonal of the normal equations, then solve them
+      for (int i=0; i<numFree; i++) {
+        for (int j=0; j<=i; j++) work[i][j] = alpha[i][j];
+        work[i][i] *= 1 + lambda;
+      }
+      boolean solved = cholesky(work, numFree);
+      if (solved) {
+        solve(work, numFree, beta, step);
+        for (int i=0; i<=c; i++) trial[i] = p[i];
+        for (int i=0; i<numFree; i++) trial[free[i]] += step[i];
+        double newChi2 = sumSquares(data, trial, offset, ws);
+        if (newChi2 < chi2) {
+          // accept the step, and trust the quadratic model a bit more
+          lambda /= LAMBDA_FACTOR;
+          for (int i=0; i<components; i++) {
+            curveEstimate[i][0] = trial[2 * i];
+            curveEstimate[i][1] = trial[2 * i + 1];
+          }
+          curveEstimate[0][2] = trial[c];
+          invalidateError();
+          return;
+        }
+      }
+      lambda *= LAMBDA_FACTOR;
+    }
+  }
+
+  /* @see ICurveFitter#getIterations() */
+  public int getIterations() { return iterCount; }
+
+  /* @see ICurveFitter#estimate() */
+  public void estimate() {
+    super.estimate();
+    lambda = INITIAL_LAMBDA;
+  }
+
+  /* @see ICurveFitter#setCurve(double[][]) */
+  public void setCurve(double[][] curve) {
+    super.setCurve(curve);
+    lambda = INITIAL_LAMBDA;
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Computes the sum of squared residuals for the given parameters, and
+   * accumulates the normal equations (J^T J and J^T r) for the free
+   * parameters into the workspace. Only the lower triangle of J^T J is
+   * filled.
+   */
+  private double accumulate(int[] data, double[] p, double offset,
+    int[] free, int numFree, Workspace ws)
+  {
+    double[][] alpha = ws.alpha;
+    double[] beta = ws.beta;
+    double[] deriv = ws.deriv;
+    double[] decay = ws.decay, exp = ws.exp;
+    for (int i=0; i<numFree; i++) {
+      beta[i] = 0;
+      for (int j=0; j<=i; j++) alpha[i][j] = 0;
+    }
+    int c = 2 * components;
+    for (int i=0; i<components; i++) {
+      decay[i] = Math.exp(-p[2 * i + 1]);
+      exp[i] = 1;
+    }
+    double chi2 = 0;
+    int num = lastIndex - firstIndex + 1;
+    for (int t=0; t<num; t++) {
+      // model value and partial derivatives at this time point
+      double y = p[c] + offset;
+      for (int i=0; i<components; i++) {
+        double e = exp[i];
+        y += p[2 * i] * e;
+        deriv[2 * i] = e;
+        deriv[2 * i + 1] = -p[2 * i] * t * e;
+        exp[i] = e * decay[i];
+      }
+      deriv[c] = 1;
+      double r = data[firstIndex + t] - y;
+      chi2 += r * r;
+      for (int i=0; i<numFree; i++) {
+        double di = deriv[free[i]];
+        beta[i] += r * di;
+        double[] row = alpha[i];
+        for (int j=0; j<=i; j++) row[j] += di * deriv[free[j]];
+      }
+    }
+    return chi2;
+  }
+
+  /** Computes the sum of squared residuals for the given parameters. */
+  private double sumSquares(int[] data, double[] p, double offset,
+    Workspace ws)
+  {
+    double[] decay = ws.decay, exp = ws.exp;
+    int c = 2 * components;
+    for (int i=0; i<components; i++) {
+      decay[i] = Math.exp(-p[2 * i + 1]);
+      exp[i] = 1;
+    }
+    double chi2 = 0;
+    int num = lastIndex - firstIndex + 1;
+    for (int t=0; t<num; t++) {
+      double y = p[c] + offset;
+      for (int i=0; i<components; i++) {
+        y += p[2 * i] * exp[i];
+        exp[i] *= decay[i];
+      }
+      double r = data[firstIndex + t] - y;
+      chi2 += r * r;
+    }
+    return chi2 == chi2 ? chi2 : Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Replaces the lower triangle of the given symmetric matrix with its
+   * Cholesky factor L, such that L L^T equals the original matrix.
+   *
+   * @return false if the matrix is not positive definite
+   */
+  static boolean cholesky(double[][] m, int n) {
+    for (int j=0; j<n; j++) {
+      double d = m[j][j];
+      for (int k=0; k<j; k++) d -= m[j][k] * m[j][k];
+      if (!(d > 0)) return false;
+      d = Math.sqrt(d);
+      m[j][j] = d;
+      for (int i=j+1; i<n; i++) {
+        double s = m[i][j];
+        for (int k=0; k<j; k++) s -= m[i][k] * m[j][k];
+        m[i][j] = s / d;
+      }
+    }
+    return true;
+  }
+
+  /** Solves L L^T x = b, given the Cholesky factor L. */
+  static void solve(double[][] l, int n, double[] b, double[] x) {
+    for (int i=0; i<n; i++) {
+      double s = b[i];
+      for (int k=0; k<i; k++) s -= l[i][k] * x[k];
+      x[i] = s / l[i][i];
+    }
+    for (int i=n-1; i>=0; i--) {
+      double s = x[i];
+      for (int k=i+1; k<n; k++) s -= l[k][i] * x[k];
+      x[i] = s / l[i][i];
+    }
+  }
+
+  // -- Helper classes --
+
+  /** Scratch buffers for fitting, sized for the largest supported model. */
+  private static class Workspace {
+    private double[] params = new double[MAX_PARAMS];
+    private double[] trial = new double[MAX_PARAMS];
+    private double[] deriv = new double[MAX_PARAMS];
+    private double[] beta = new double[MAX_PARAMS];
+    private double[] step = new double[MAX_PARAMS];
+    private double[][] alpha = new double[MAX_PARAMS][MAX_PARAMS];
+    private double[][] work = new double[MAX_PARAMS][MAX_PARAMS];
+    private int[] free = new int[MAX_PARAMS];
+    private double[] decay = new double[MAX_PARAMS / 2];
+    private double[] exp = new double[MAX_PARAMS / 2];
+  }
+
+}
@@ -25,6 +25,7 @@
 package loci.slim.fit;
 
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Genetic algorithm for exponential curve fitting.
@@ -44,6 +45,15 @@ public class GACurveFitter extends CurveFitter {
   // Must be 0 < x < 1
   private static final double MUTATION_FACTOR_REDUCTION = .99;
 
+  /**
+   * Minimum number of data points, per exponential component, each thread
+   * should evaluate per generation. Scoring a data point of one component
+   * takes a few nanoseconds, so this is several microseconds of work, well
+   * above the cost of handing it to a pooled thread. A generation of 25
+   * specimens over 256 bins is thus shared by six threads.
+   */
+  private static final int MIN_POINTS_PER_THREAD = 1024;
+
   // -- Fields --
 
   protected double[][][] geneticData;
@@ -53,6 +63,45 @@ public class GACurveFitter extends CurveFitter {
   protected int numIter;
   protected Random r;
 
+  /** Whether a starting estimate has been computed or supplied. */
+  protected boolean estimated;
+
+  /** Population settings; see the corresponding setters. */
+  protected int populationSize = SPECIMENS;
+  protected int stallLimit = STALL_GENERATIONS;
+  protected double mutationChance = MUTATION_CHANCE;
+  protected double initialMutationFactor = INITIAL_MUTATION_FACTOR;
+  protected double mutationFactorReduction = MUTATION_FACTOR_REDUCTION;
+
+  /** Maximum number of threads used to breed and score a generation. */
+  protected int threadCount = 1;
+
+  /** Buffer for the generation being bred, swapped with geneticData. */
+  private double[][][] nextGeneration;
+
+  /** Reduced chi-squared error of each specimen of the new generation. */
+  private double[] scores;
+
+  /** Whether fitness holds selection ranges for the current generation. */
+  private boolean primed;
+
+  /** Whether the generation being bred is reseeded from the estimate. */
+  private boolean reseed;
+
+  /** Random stream of each breeding thread; the first one is r. */
+  private Random[] randoms;
+
+  /** Number of threads breeding the current generation. */
+  private int activeThreads;
+
+  /** Next free breeding thread slot. */
+  private final AtomicInteger slots = new AtomicInteger();
+
+  /** Task run by each breeding thread. */
+  private final Runnable breeder = new Runnable() {
+    public void run() { breed(slots.getAndIncrement(), activeThreads); }
+  };
+
   // -- Constructor --
 
   public GACurveFitter() {
@@ -64,14 +113,97 @@ public class GACurveFitter extends CurveFitter {
     components = 1;
     curveEstimate = new double[components][3];
     geneticData = null;
+    nextGeneration = null;
     fitness = null;
+    scores = null;
+    primed = false;
     currentRCSE = Double.MAX_VALUE;
+    invalidateError();
+    estimated = false;
     stallGenerations = 0;
-    mutationFactor = INITIAL_MUTATION_FACTOR;
+    mutationFactor = initialMutationFactor;
     numIter = 0;
     r = new Random();
+    randoms = new Random[] {r};
+  }
+
+  // -- GACurveFitter methods --
+
+  /** Sets the number of specimens in each generation. */
+  public void setPopulationSize(int size) {
+    if (size < 2) {
+      throw new IllegalArgumentException("Population size must be >= 2");
+    }
+    populationSize = size;
+  }
+
+  /** Gets the number of specimens in each generation. */
+  public int getPopulationSize() { return populationSize; }
+
+  /**
+   * Sets how many generations may pass without improvement before the
+   * population is reseeded from the current estimate.
+   */
+  public void setStallGenerations(int generations) {
+    stallLimit = generations;
+  }
+
+  /** Gets the number of generations allowed without improvement. */
+  public int getStallGenerations() { return stallLimit; }
+
+  /** Sets the chance that each parameter of a new specimen mutates. */
+  public void setMutationChance(double chance) {
+    if (chance < 0 || chance > 1) {
+      throw new IllegalArgumentException("Mutation chance must be in [0, 1]");
+    }
+    mutationChance = chance;
+  }
+
+  /** Gets the chance that each parameter of a new specimen mutates. */
+  public double getMutationChance() { return mutationChance; }
+
+  /**
+   * Sets the initial mutation factor, the largest relative change a
+   * mutation can make to a parameter. Must be strictly between 0 and 1.
+   */
+  public void setInitialMutationFactor(double factor) {
+    if (factor <= 0 || factor >= 1) {
+      throw new IllegalArgumentException("Mutation factor must be in (0, 1)");
+    }
+    if (numIter == 0) mutationFactor = factor;
+    initialMutationFactor = factor;
+  }
+
+  /** Gets the initial mutation factor. */
+  public double getInitialMutationFactor() { return initialMutationFactor; }
+
+  /**
+   * Sets the factor by which the mutation factor shrinks each time the
+   * population is reseeded. Must be strictly between 0 and 1.
+   */
+  public void setMutationFactorReduction(double reduction) {
+    if (reduction <= 0 || reduction >= 1) {
+      throw new IllegalArgumentException(
+        "Mutation factor reduction must be in (0, 1)");
+    }
+    mutationFactorReduction = reduction;
   }
 
+  /** Gets the factor by which the mutation factor shrinks. */
+  public double getMutationFactorReduction() {
+    return mutationFactorReduction;
+  }
+
+  /**
+   * Sets the maximum number of threads used to breed and score each
+   * generation. Small populations and short curves use fewer threads.
+   */
+  public void setThreadCount(int threads) {
+    threadCount = threads < 1 ? 1 : threads;
+  }
+
+  /** Gets the maximum number of threads used per generation. */
+  public int getThreadCount() { return threadCount; }
 
   // -- ICurveFitter methods --
 
@@ -81,118 +213,90 @@ public class GACurveFitter extends CurveFitter {
    * information returned by getCurve and getChiSquaredError
    **/
   public void iterate() {
-    if (currentRCSE == Double.MAX_VALUE) estimate();
+    if (!estimated) estimate();
 
-    // TODO: Move these out, reuse them. Synchronized?
-    double[][][] newGeneration = new double[SPECIMENS][components][3];
+    int size = populationSize;
+    if (geneticData == null || geneticData.length != size ||
+      geneticData[0].length != components)
+    {
+      geneticData = new double[size][components][3];
+      nextGeneration = new double[size][components][3];
+      fitness = new double[size];
+      scores = new double[size];
+      primed = false;
+    }
 
     // First make the new generation.
     // If we don't have generation or fitness data, generate it from whatever
     // the current estimate is.
     // Additionally, if we haven't improved for a number of generations,
     // shake things up.
-    if (geneticData == null || fitness == null ||
-      stallGenerations > STALL_GENERATIONS)
-    {
+    reseed = !primed || stallGenerations > stallLimit;
+    if (reseed) {
       stallGenerations = 0;
-      mutationFactor *= MUTATION_FACTOR_REDUCTION;
-      for (int i = 1; i < newGeneration.length; i++) {
-        for (int j = 0; j < components; j++) {
-          for (int k = 0; k < 3; k++) {
-            double factor = r.nextDouble() * STALLED_FACTOR;
-            newGeneration[i][j][k] = curveEstimate[j][k] * factor;
-          }
-        }
-      }
-      for (int j = 0; j < components; j++) {
-        for (int k = 0; k < 3; k++) {
-          newGeneration[0][j][k] = curveEstimate[j][k];
-        }
-      }
-    }
-    else {
-      // The fitness array is determined in the previous generation. It is
-      // actually a marker for a range for a single random number, scaled to
-      // 0.0-1.0. For example, if the raw fitness was {4, 3, 2, 1}, the
-      // fitness array would contain {.4, .7, .9, 1.0}
-      for (int q = 0; q < newGeneration.length; q++) {
-        int mother = 0;
-        int father = 0;
-        double fchance = r.nextDouble();
-        double mchance = r.nextDouble();
-        for (int i = 0; i < fitness.length; i++) {
-          if (fitness[i] > fchance) {
-            father = i;
-            break;
-          }
-        }
-        for (int i = 0; i < fitness.length; i++) {
-          if (fitness[i] > mchance) {
-            mother = i;
-            break;
-          }
-        }
-        double minfluence = r.nextDouble();
-        for (int j = 0; j < components; j++) {
-          for (int k = 0; k < 3; k++) {
-            newGeneration[q][j][k] =
-              geneticData[mother][j][k] * minfluence +
-              geneticData[father][j][k] * (1.0 - minfluence);
-          }
-        }
-      }
-      for (int i = 0; i < newGeneration.length; i++) {
-        for (int j = 0; j < components; j++) {
-          for (int k = 0; k < 3; k++) {
-            // mutate, if necessary
-            if (r.nextDouble() < MUTATION_CHANCE) {
-              newGeneration[i][j][k] *= ((1.0 - mutationFactor) +
-                r.nextDouble() * (2.0 * mutationFactor));
-            }
-          }
-        }
-      }
+      mutationFactor *= mutationFactorReduction;
     }
 
-    // ensure that fixed parameters do not change
-    for (int i = 0; i < newGeneration.length; i++) {
-      for (int j = 0; j < components; j++) {
-        for (int k = 0; k < 3; k++) {
-          if (curveFixed[j][k]) newGeneration[i][j][k] = curveEstimate[j][k];
-        }
+    // breed and score the specimens, in parallel if worthwhile
+    int points = lastIndex - firstIndex + 1;
+    long work = (long) size * points * components / MIN_POINTS_PER_THREAD;
+    int threads = (int) Math.max(1, Math.min(threadCount, work));
+    if (randoms.length < threads) {
+      Random[] newRandoms = new Random[threads];
+      System.arraycopy(randoms, 0, newRandoms, 0, randoms.length);
+      for (int i=randoms.length; i<threads; i++) {
+        newRandoms[i] = new Random(r.nextLong());
       }
+      randoms = newRandoms;
+    }
+    activeThreads = threads;
+    slots.set(0);
+    holdData();
+    try {
+      if (threads > 1) Workers.runPooled(breeder, threads);
+      else breeder.run();
+    }
+    finally {
+      releaseData();
     }
 
     // compute best candidate
-    geneticData = newGeneration;
+    double[][][] swap = geneticData;
+    geneticData = nextGeneration;
+    nextGeneration = swap;
     double total = 0.0d;
     double best = Double.POSITIVE_INFINITY;
     int bestindex = -1;
     stallGenerations++;
-    for (int i = 0; i < geneticData.length; i++) {
-      fitness = new double[geneticData.length];
-      fitness[i] = getReducedChiSquaredError(geneticData[i]);
-      if (fitness[i] < best) {
-        best = fitness[i];
+    for (int i = 0; i < size; i++) {
+      if (scores[i] < best) {
+        best = scores[i];
         bestindex = i;
       }
-      fitness[i] = 1.0 / fitness[i];
+      fitness[i] = 1.0 / scores[i];
       total += fitness[i];
     }
-    for (int i = 0; i < geneticData.length; i++) {
-      fitness[i] /= total;
+
+    // turn fitness values into cumulative selection ranges
+    double sum = 0.0d;
+    for (int i = 0; i < size; i++) {
+      sum += fitness[i];
+      fitness[i] = sum / total;
     }
-    if (best < currentRCSE) {
+    fitness[size - 1] = 1.0;
+    primed = total > 0 && total != Double.POSITIVE_INFINITY;
+
+    if (best < getReducedChiSquaredError()) {
       stallGenerations = 0;
-      currentRCSE = best;
       for (int j = 0; j < components; j++) {
         for (int k = 0; k < 3; k++) {
           curveEstimate[j][k] = geneticData[bestindex][j][k];
         }
       }
+      invalidateError();
     }
     if (DEBUG) {
-      System.out.println("RCSE: " + currentRCSE);
+      System.out.println("RCSE: " + getReducedChiSquaredError());
       for (int j = 0; j < components; j++) {
         System.out.println("a: " + curveEstimate[j][0] + " b: " +
           curveEstimate[j][1] + " c: " + curveEstimate[j][2]);
@@ -204,4 +308,84 @@ public class GACurveFitter extends CurveFitter {
 
   public int getIterations() { return numIter; }
 
+  /* @see ICurveFitter#estimate() */
+  public void estimate() {
+    super.estimate();
+    estimated = true;
+  }
+
+  /* @see ICurveFitter#setCurve(double[][]) */
+  public void setCurve(double[][] curve) {
+    super.setCurve(curve);
+    estimated = true;
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Breeds and scores every specimen of the new generation whose index is
+   * congruent to the given slot, modulo the number of threads.
+   */
+  private void breed(int slot, int threads) {
+    Random rand = randoms[slot];
+    for (int q = slot; q < nextGeneration.length; q += threads) {
+      double[][] child = nextGeneration[q];
+      if (reseed) {
+        if (q == 0) {
+          for (int j = 0; j < components; j++) {
+            for (int k = 0; k < 3; k++) child[j][k] = curveEstimate[j][k];
+          }
+        }
+        else {
+          for (int j = 0; j < components; j++) {
+            for (int k = 0; k < 3; k++) {
+              double factor = rand.nextDouble() * STALLED_FACTOR;
+              child[j][k] = curveEstimate[j][k] * factor;
+            }
+          }
+        }
+      }
+      else {
+        // The fitness array is determined in the previous generation. It
+        // is actually a marker for a range for a single random number,
+        // scaled to 0.0-1.0. For example, if the raw fitness was
+        // {4, 3, 2, 1}, the fitness array would contain {.4, .7, .9, 1.0}
+        int father = select(rand.nextDouble());
+        int mother = select(rand.nextDouble());
+        double minfluence = rand.nextDouble();
+        for (int j = 0; j < components; j++) {
+          for (int k = 0; k < 3; k++) {
+            child[j][k] = geneticData[mother][j][k] * minfluence +
+              geneticData[father][j][k] * (1.0 - minfluence);
+          }
+        }
+        for (int j = 0; j < components; j++) {
+          for (int k = 0; k < 3; k++) {
+            // mutate, if necessary
+            if (rand.nextDouble() < mutationChance) {
+              child[j][k] *= ((1.0 - mutationFactor) +
+                rand.nextDouble() * (2.0 * mutationFactor));
+            }
+          }
+        }
+      }
+
+      // ensure that fixed parameters do not change
+      for (int j = 0; j < components; j++) {
+        for (int k = 0; k < 3; k++) {
+          if (curveFixed[j][k]) child[j][k] = curveEstimate[j][k];
+        }
+      }
+      scores[q] = getReducedChiSquaredError(child);
+    }
+  }
+
+  /** Gets the index of the specimen whose selection range holds chance. */
+  private int select(double chance) {
+    for (int i = 0; i < fitness.length; i++) {
+      if (fitness[i] > chance) return i;
+    }
+    return 0;
+  }
+
 }
@@ -0,0 +1,52 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+/**
+ * Interface for curve fitting algorithms that fit every curve of a
+ * {@link CurveTile} together, sweeping all pixels in lockstep. Any state a
+ * fitter keeps per curve is stored in the tile, so one fitter can be reused
+ * for many tiles; fitters are not thread safe, however.
+ */
+public interface IBatchCurveFitter {
+
+  /**
+   * For each parameter, sets whether it should be fixed at the current value,
+   * or allowed to iterate toward an optimal value.
+   * @see ICurveFitter#setFixed(boolean[][])
+   */
+  void setFixed(boolean[][] fixed);
+
+  /** Initializes every curve of the tile with a starting estimate. */
+  void estimate(CurveTile tile);
+
+  /**
+   * Runs one iteration of the fitting technique for every curve of the tile
+   * that is not yet finished, updating the tile's parameters and errors and
+   * counting the iteration for each curve actually iterated.
+   */
+  void iterate(CurveTile tile);
+
+}
@@ -77,6 +77,7 @@ public class LMCurveFitter extends CurveFitter {
       curveEstimate[i][1] = lma.parameters[e + 1]; // b
     }
     curveEstimate[0][2] = lma.parameters[2 * components]; // c
+    invalidateError();
   }
 
   public int getIterations() { return iterCount; }
@@ -84,7 +85,19 @@ public class LMCurveFitter extends CurveFitter {
   /* @see ICurveFitter#estimate() */
   public void estimate() {
     super.estimate();
+    initLMA();
+  }
+
+  /* @see ICurveFitter#setCurve(double[][]) */
+  public void setCurve(double[][] curve) {
+    super.setCurve(curve);
+    initLMA();
+  }
+
+  // -- Helper methods --
 
+  /** Prepares the LMA to continue fitting from the current estimate. */
+  private void initLMA() {
     int num = lastIndex - firstIndex + 1;
 
     Integer iNum = new Integer(num);
@@ -101,9 +114,10 @@ public class LMCurveFitter extends CurveFitter {
       }
     }
 
+    int[] data = readData();
     double[] yVals = new double[num];
     for (int i=0, q=firstIndex; i<num; i++, q++) {
-      yVals[i] = curveData[q];
+      yVals[i] = data[q];
     }
 
     double[] params = new double[2 * components + 1];
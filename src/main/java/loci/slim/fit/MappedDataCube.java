@@ -0,0 +1,208 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Read-only data cube whose cells are memory mapped from a file previously
+ * written with {@link DataCube#write}. Pages are loaded lazily by the
+ * operating system as they are accessed, rather than all at once.
+ */
+public class MappedDataCube extends DataCube {
+
+  // -- Constants --
+
+  /** Maximum number of bytes in a single mapping. */
+  private static final int MAX_MAPPING = 1 << 30;
+
+  // -- Fields --
+
+  /** 32-bit count values, dimensioned [chunk], or null if narrow. */
+  protected IntBuffer[] wideBuffers;
+
+  /** 16-bit count values, dimensioned [chunk], or null if wide. */
+  protected CharBuffer[] narrowBuffers;
+
+  // -- Constructor --
+
+  /**
+   * Maps a data cube with the given dimensions from the specified file.
+   *
+   * @param file File channel from which to map the cube. The mapping remains
+   *   valid after the channel is closed.
+   * @param offset Position of the first cell within the file.
+   * @param narrow Whether the cells are 16 bits wide rather than 32.
+   */
+  public MappedDataCube(FileChannel file, long offset,
+    int channels, int rows, int cols, int bins, boolean narrow)
+    throws IOException
+  {
+    super(channels, rows, cols, bins, MAX_MAPPING / (narrow ? 2 : 4));
+    int cellSize = narrow ? 2 : 4;
+    int totalRows = channels * rows;
+    int numChunks = (totalRows + chunkRows - 1) / chunkRows;
+    long end = offset + (long) totalRows * rowStride * cellSize;
+    if (file.size() < end) {
+      throw new IOException("File too short: expected " + end +
+        " bytes but got " + file.size());
+    }
+    if (narrow) narrowBuffers = new CharBuffer[numChunks];
+    else wideBuffers = new IntBuffer[numChunks];
+    long pos = offset;
+    for (int i=0; i<numChunks; i++) {
+      int chunkSize = Math.min(chunkRows, totalRows - i * chunkRows);
+      long length = (long) chunkSize * rowStride * cellSize;
+      MappedByteBuffer map =
+        file.map(FileChannel.MapMode.READ_ONLY, pos, length);
+      map.order(ByteOrder.nativeOrder());
+      if (narrow) narrowBuffers[i] = map.asCharBuffer();
+      else wideBuffers[i] = map.asIntBuffer();
+      pos += length;
+    }
+  }
+
+  // -- DataCube methods --
+
+  public boolean isNarrow() { return narrowBuffers != null; }
+
+  public boolean fits(int value) { return false; }
+
+  public void widen() {
+    if (isNarrow()) throw new UnsupportedOperationException("Read only");
+  }
+
+  public int get(int c, int y, int x, int t) {
+    int row = c * rows + y;
+    int index = offset(row, x) + t;
+    if (narrowBuffers != null) {
+      return narrowBuffers[row / chunkRows].get(index);
+    }
+    return wideBuffers[row / chunkRows].get(index);
+  }
+
+  public void set(int c, int y, int x, int t, int value) {
+    throw new UnsupportedOperationException("Read only");
+  }
+
+  public int[] getCurve(int c, int y, int x, int[] curve) {
+    if (curve == null) curve = new int[bins];
+    int row = c * rows + y;
+    int off = offset(row, x);
+    if (narrowBuffers != null) {
+      CharBuffer buf = narrowBuffers[row / chunkRows];
+      for (int t=0; t<bins; t++) curve[t] = buf.get(off + t);
+    }
+    else {
+      IntBuffer buf = wideBuffers[row / chunkRows];
+      for (int t=0; t<bins; t++) curve[t] = buf.get(off + t);
+    }
+    return curve;
+  }
+
+  public void addCurve(int c, int y, int x, int[] sum) {
+    int row = c * rows + y;
+    int off = offset(row, x);
+    if (narrowBuffers != null) {
+      CharBuffer buf = narrowBuffers[row / chunkRows];
+      for (int t=0; t<bins; t++) sum[t] += buf.get(off + t);
+    }
+    else {
+      IntBuffer buf = wideBuffers[row / chunkRows];
+      for (int t=0; t<bins; t++) sum[t] += buf.get(off + t);
+    }
+  }
+
+  public void subtractCurve(int c, int y, int x, int[] sum) {
+    int row = c * rows + y;
+    int off = offset(row, x);
+    if (narrowBuffers != null) {
+      CharBuffer buf = narrowBuffers[row / chunkRows];
+      for (int t=0; t<bins; t++) sum[t] -= buf.get(off + t);
+    }
+    else {
+      IntBuffer buf = wideBuffers[row / chunkRows];
+      for (int t=0; t<bins; t++) sum[t] -= buf.get(off + t);
+    }
+  }
+
+  public int sumCurve(int c, int y, int x) {
+    int row = c * rows + y;
+    int off = offset(row, x);
+    int sum = 0;
+    if (narrowBuffers != null) {
+      CharBuffer buf = narrowBuffers[row / chunkRows];
+      for (int t=0; t<bins; t++) sum += buf.get(off + t);
+    }
+    else {
+      IntBuffer buf = wideBuffers[row / chunkRows];
+      for (int t=0; t<bins; t++) sum += buf.get(off + t);
+    }
+    return sum;
+  }
+
+  public void shift(int c, int shift) {
+    if (shift > 0) throw new UnsupportedOperationException("Read only");
+  }
+
+  public void write(WritableByteChannel out) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    buf.order(ByteOrder.nativeOrder());
+    boolean narrow = isNarrow();
+    int cellSize = narrow ? 2 : 4;
+    int step = buf.capacity() / cellSize;
+    char[] narrowCells = narrow ? new char[step] : null;
+    int[] wideCells = narrow ? null : new int[step];
+    int numChunks = narrow ? narrowBuffers.length : wideBuffers.length;
+    for (int i=0; i<numChunks; i++) {
+      // duplicates, so that reading does not disturb the shared positions
+      CharBuffer narrowChunk = narrow ? narrowBuffers[i].duplicate() : null;
+      IntBuffer wideChunk = narrow ? null : wideBuffers[i].duplicate();
+      int length = narrow ? narrowChunk.capacity() : wideChunk.capacity();
+      for (int off=0; off<length; off+=step) {
+        int count = Math.min(step, length - off);
+        buf.clear();
+        if (narrow) {
+          narrowChunk.get(narrowCells, 0, count);
+          buf.asCharBuffer().put(narrowCells, 0, count);
+        }
+        else {
+          wideChunk.get(wideCells, 0, count);
+          buf.asIntBuffer().put(wideCells, 0, count);
+        }
+        buf.limit(count * cellSize);
+        while (buf.hasRemaining()) out.write(buf);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,619 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Curve renderer implementation that performs the same progressive burn-in
+ * as {@link BurnInRenderer}, but splits each phase into square tiles of
+ * pixels that are processed concurrently by a pool of worker threads.
+ *
+ * Workers claim tiles dynamically from a shared counter, so a worker that
+ * finishes a cheap tile immediately moves on to the next unclaimed one and
+ * all cores stay busy until the phase is complete. Each subsampling level of
+ * the estimation phase is completed before the next finer level begins, so
+ * the lifetime image is still refined progressively.
+ *
+ * During continuing improvement, workers instead claim pixels from a shared
+ * queue ordered by RCSE, so that together they always work on the worst
+ * pixels of the image.
+ */
+public class ParallelBurnInRenderer extends CurveRenderer {
+
+  // -- Constants --
+
+  /** Number of consecutive failures before a pixel is judged to be stalled. */
+  private static final int STALL_ITERATIONS = 10;
+
+  /** Default width and height of a tile, in pixels. */
+  public static final int DEFAULT_TILE_SIZE = 16;
+
+  /** Milliseconds a worker sleeps after a sweep with nothing to improve. */
+  private static final int IDLE_DELAY = 50;
+
+  /** Number of pixels a worker improves per permit from the thread budget. */
+  private static final int PIXELS_PER_PERMIT = 16;
+
+  // -- Fields --
+
+  protected double[][] image;
+  protected boolean[][] mask;
+  protected int maskCount;
+  private int threadCount;
+  private int tileSize;
+  private boolean batchFitting = true;
+  private boolean estimated;
+  private boolean improving;
+  private double[][] rcseCache;
+  private boolean[][] stalled;
+  private int stallCount;
+  private double totalRCSE;
+
+  /** Unstalled, unclaimed pixels within the mask, ordered by RCSE. */
+  private PixelHeap queue;
+
+  /** Whether the queue must be rebuilt before it is next used. */
+  private boolean queueStale;
+
+  /** Pixels currently being improved by a worker. */
+  private boolean[][] claimed;
+
+  /** Tiles of the current pass that have been completely processed. */
+  private boolean[] tileDone;
+
+  private final AtomicInteger progress = new AtomicInteger();
+  private final AtomicInteger iterations = new AtomicInteger();
+  private final Object lock = new Object();
+  private volatile int imageX, imageY;
+
+  // -- Constructors --
+
+  /** Creates a renderer using one worker thread per available processor. */
+  public ParallelBurnInRenderer(CurveCollection cc) {
+    this(cc, Runtime.getRuntime().availableProcessors());
+  }
+
+  /** Creates a renderer using the given number of worker threads. */
+  public ParallelBurnInRenderer(CurveCollection cc, int threads) {
+    super(cc);
+    setThreadCount(threads);
+    tileSize = DEFAULT_TILE_SIZE;
+    subsampleLevel = curveData.getSubsamplingDepth();
+    maxProgress = 0;
+    for (int d=subsampleLevel; d>=0; d--) {
+      maxProgress += levelRows(d) * levelCols(d);
+    }
+    alive = false;
+    maxIterations = 1;
+    maxRCSE = 0.0d;
+    estimated = false;
+    improving = false;
+    setComponentCount(1);
+    rcseCache = new double[numRows][numCols];
+    stalled = new boolean[numRows][numCols];
+    claimed = new boolean[numRows][numCols];
+    setMask(null);
+  }
+
+  // -- ParallelBurnInRenderer methods --
+
+  /** Sets the number of worker threads used for subsequent passes. */
+  public void setThreadCount(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Invalid thread count: " + threads);
+    }
+    threadCount = threads;
+  }
+
+  /** Gets the number of worker threads. */
+  public int getThreadCount() { return threadCount; }
+
+  /**
+   * Sets the width and height of the tiles distributed to worker threads.
+   * Takes effect at the start of the next pass.
+   */
+  public void setTileSize(int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Invalid tile size: " + size);
+    }
+    tileSize = size;
+  }
+
+  /** Gets the width and height of the tiles distributed to worker threads. */
+  public int getTileSize() { return tileSize; }
+
+  /**
+   * Sets whether the initial iterations fit each tile of pixels together
+   * with an {@link IBatchCurveFitter}, when one exists for the type of curve
+   * fitters in use. As without batch fitting, each pixel stops being
+   * refined once its RCSE falls below the maximum.
+   */
+  public void setBatchFitting(boolean batch) { batchFitting = batch; }
+
+  /** Gets whether the initial iterations fit tiles of pixels together. */
+  public boolean isBatchFitting() { return batchFitting; }
+
+  // -- CurveRenderer methods --
+
+  public boolean isImproving() { return improving; }
+
+  public int getStallCount() { return stallCount; }
+
+  public void restore(int iterations) {
+    ICurveFitter[][] curves = curveData.getCurves(0);
+    double total = 0;
+    for (int y=0; y<numRows; y++) {
+      for (int x=0; x<numCols; x++) {
+        rcseCache[y][x] = curves[y][x].getReducedChiSquaredError();
+        total += rcseCache[y][x];
+        drawPixel(curves[y][x], x, y);
+      }
+    }
+    totalRCSE = total;
+    this.iterations.set(iterations);
+    tileDone = null;
+    subsampleLevel = -1;
+    estimated = true;
+    improving = true;
+    maxProgress = numRows * numCols;
+    progress.set(maxProgress);
+    synchronized (lock) {
+      clearStalled();
+    }
+  }
+
+  // -- ICurveRenderer methods --
+
+  public void run() {
+    alive = true;
+
+    // initial pass - estimates
+    while (subsampleLevel >= 0 && alive && !estimated) {
+      runPass(subsampleLevel, false);
+      if (alive) {
+        tileDone = null;
+        curveData.releaseCurves(subsampleLevel);
+        subsampleLevel--;
+      }
+    }
+
+    // initial pass - iterations
+    if (alive && !improving) {
+      if (!estimated) {
+        estimated = true;
+        progress.set(0);
+        maxProgress = numRows * numCols;
+      }
+      runPass(0, true);
+      if (alive) {
+        tileDone = null;
+        double total = 0;
+        for (int y=0; y<numRows; y++) {
+          for (int x=0; x<numCols; x++) total += rcseCache[y][x];
+        }
+        totalRCSE = total;
+        improving = true;
+      }
+    }
+
+    // continuing improvement
+    if (alive) {
+      progress.set(maxProgress);
+      runImprovement();
+    }
+  }
+
+  public int getTotalIterations() {
+    return iterations.get();
+  }
+
+  public int getCurrentProgress() {
+    return progress.get();
+  }
+
+  public double[][] getImage() {
+    return image;
+  }
+
+  public void setComponentCount(int numExp) {
+    numExponentials = numExp;
+    image = new double[numExponentials][numRows * numCols];
+    curveData.setComponentCount(numExponentials);
+  }
+
+  public void setMask(boolean[][] mask) {
+    int count = numRows * numCols;
+    if (mask != null) {
+      if (mask.length < numRows) {
+        throw new IllegalArgumentException("Invalid mask: mask.length=" +
+          mask.length + ", numRows=" + numRows);
+      }
+      count = 0;
+      for (int i=0; i<numRows; i++) {
+        if (mask[i].length < numCols) {
+          throw new IllegalArgumentException("Invalid mask: mask[" + i +
+            "].length=" + mask[i].length + ", numCols=" + numCols);
+        }
+        for (int j=0; j<numCols; j++) if (mask[i][j]) count++;
+      }
+    }
+    synchronized (lock) {
+      this.mask = mask;
+      maskCount = count;
+      clearStalled();
+    }
+  }
+
+  public boolean[][] getMask() {
+    return mask;
+  }
+
+  public int getImageX() {
+    return imageX;
+  }
+
+  public int getImageY() {
+    return imageY;
+  }
+
+  public double getTotalRCSE() {
+    return totalRCSE;
+  }
+
+  public double getWorstRCSE() {
+    synchronized (lock) {
+      return queue == null || queue.isEmpty() ? 0 : queue.peekKey();
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Estimates (or, at full resolution, iterates) every curve of the given
+   * subsampling level, skipping any tiles completed by an earlier,
+   * interrupted call.
+   */
+  private void runPass(final int level, final boolean iterate) {
+    final ICurveFitter[][] curves = curveData.getCurves(level);
+    final int rows = curves.length;
+    final int cols = curves[0].length;
+    final int size = tileSize;
+    final int tilesX = (cols + size - 1) / size;
+    final int tiles = tilesX * ((rows + size - 1) / size);
+    if (tileDone == null || tileDone.length != tiles) {
+      tileDone = new boolean[tiles];
+    }
+    final boolean[] done = tileDone;
+    final AtomicInteger next = new AtomicInteger();
+    final Class<?> fitterClass = curves[0][0].getClass();
+    final boolean[][] fixed = curveData.getFixed();
+    final AtomicInteger workers = new AtomicInteger();
+    Workers.runPooled(new Runnable() {
+      public void run() {
+        int worker = workers.getAndIncrement();
+        IBatchCurveFitter batch = null;
+        CurveTile tile = null;
+        ICurveFitter coarse = iterate || level == 0 ?
+          null : newCoarseEstimator();
+        if (iterate && batchFitting) {
+          batch = CurveCollection.newBatchCurveFitter(fitterClass);
+        }
+        if (batch != null) {
+          batch.setFixed(fixed);
+          tile = new CurveTile(size * size,
+            curves[0][0].getData().length, numExponentials);
+        }
+        while (awaitShare(worker, next, tiles)) {
+          int t = next.getAndIncrement();
+          if (t >= tiles) break;
+          if (done[t]) continue;
+          int y0 = size * (t / tilesX), x0 = size * (t % tilesX);
+          int y1 = Math.min(y0 + size, rows), x1 = Math.min(x0 + size, cols);
+          if (!acquireBudget()) return;
+          try {
+            if (batch != null) {
+              if (!iterateTile(batch, tile, curves, x0, y0, x1, y1)) return;
+            }
+            else {
+              for (int y=y0; y<y1; y++) {
+                for (int x=x0; x<x1; x++) {
+                  if (!alive) return;
+                  if (iterate) iteratePixel(curves[y][x], x, y);
+                  else {
+                    estimatePixel(curves[y][x], coarse,
+                      level, rows, cols, x, y);
+                  }
+                }
+              }
+            }
+          }
+          finally {
+            releaseBudget();
+          }
+          done[t] = true;
+          progress.addAndGet((y1 - y0) * (x1 - x0));
+        }
+      }
+    }, getWorkerCount());
+  }
+
+  /**
+   * Continually improves the worst pixels of the image. Each worker claims
+   * the worst pixel not already claimed by another worker.
+   */
+  private void runImprovement() {
+    final ICurveFitter[][] curves = curveData.getCurves(0);
+    final AtomicInteger workers = new AtomicInteger();
+    Workers.runPooled(new Runnable() {
+      public void run() {
+        int worker = workers.getAndIncrement();
+        while (awaitShare(worker, null, 0)) {
+          if (!acquireBudget()) return;
+          boolean idle = false;
+          try {
+            // hold the permit for a batch of pixels, not for each one
+            for (int n=0; n<PIXELS_PER_PERMIT && alive; n++) {
+              int index;
+              synchronized (lock) {
+                if (queue == null || queueStale) rebuildQueue();
+                // curve fitters are not thread safe; never share a pixel
+                index = queue.poll();
+                if (index >= 0) {
+                  claimed[index / numCols][index % numCols] = true;
+                }
+              }
+              if (index < 0) {
+                idle = true;
+                break;
+              }
+              int y = index / numCols, x = index % numCols;
+              improvePixel(curves[y][x], x, y);
+            }
+          }
+          finally {
+            releaseBudget();
+          }
+          if (idle) {
+            // nothing left to improve anywhere; avoid spinning
+            try { Thread.sleep(IDLE_DELAY); }
+            catch (InterruptedException exc) { return; }
+          }
+        }
+      }
+    }, getWorkerCount());
+  }
+
+  /**
+   * Gets the number of workers to start for a pass: the thread count,
+   * capped at the largest share of the thread budget this renderer can
+   * receive while it takes priority.
+   */
+  private int getWorkerCount() {
+    ThreadBudget b = budget;
+    return b == null ? threadCount : Math.min(threadCount, b.getShare(true));
+  }
+
+  /**
+   * Waits while the given worker is beyond this renderer's current share of
+   * its thread budget, so that surplus workers neither hold nor contend for
+   * permits.
+   *
+   * @param next Counter from which workers claim the items of a pass, or
+   *   null if the pass has no end.
+   * @param items Number of items in the pass.
+   * @return false if the renderer was stopped or no items remain unclaimed
+   */
+  private boolean awaitShare(int worker, AtomicInteger next, int items) {
+    while (alive && worker >= getBudgetShare(threadCount)) {
+      if (next != null && next.get() >= items) return false;
+      try { Thread.sleep(IDLE_DELAY); }
+      catch (InterruptedException exc) { return false; }
+    }
+    return alive;
+  }
+
+  /**
+   * Iterates the given claimed pixel until its error improves, marking it
+   * as stalled after too many consecutive failures, then releases it.
+   */
+  private void improvePixel(ICurveFitter cf, int x, int y) {
+    currentX = x;
+    currentY = y;
+    boolean stall = true;
+    for (int i=0; i<STALL_ITERATIONS && alive; i++) {
+      cf.iterate();
+      iterations.incrementAndGet();
+      double newRCSE = cf.getReducedChiSquaredError();
+      double oldRCSE = rcseCache[y][x];
+      rcseCache[y][x] = newRCSE;
+      synchronized (lock) {
+        totalRCSE += newRCSE - oldRCSE;
+      }
+      if (newRCSE < oldRCSE) {
+        // error improved
+        drawPixel(cf, x, y);
+        stall = false;
+        break;
+      }
+    }
+    if (!alive) stall = false;
+
+    synchronized (lock) {
+      claimed[y][x] = false;
+      if (stall && !stalled[y][x]) {
+        // too many failures; this pixel is stalled
+        stalled[y][x] = true;
+        stallCount++;
+        // every pixel is stalled; retry everything
+        if (stallCount >= maskCount) clearStalled();
+      }
+      boolean[][] m = mask;
+      if ((m == null || m[y][x]) && !stalled[y][x] && !queueStale) {
+        queue.update(y * numCols + x, rcseCache[y][x]);
+      }
+    }
+  }
+
+  /**
+   * Computes the initial estimate for one curve of a subsampling level,
+   * using the given coarse estimator in place of its fitter, if non-null.
+   */
+  private void estimatePixel(ICurveFitter cf, ICurveFitter coarse,
+    int level, int rows, int cols, int x, int y)
+  {
+    if (coarse != null) {
+      coarse.setData(cf.getData(), cf.getFirst(), cf.getLast());
+      cf = coarse;
+    }
+    cf.estimate();
+    // this only really matters for the last subsample level
+    if (level == 0) rcseCache[y][x] = cf.getReducedChiSquaredError();
+    double[] exponentials = getExponentials(cf);
+
+    int iy = y * numRows / rows;
+    int ix = x * numCols / cols;
+    int widthY = numRows / rows;
+    int widthX = numCols / cols;
+    imageX = ix;
+    imageY = iy;
+    for (int c=0; c<numExponentials; c++) {
+      int expIndex = numExponentials - c - 1;
+      for (int yy=0; yy<widthY; yy++) {
+        int xyIndex = (iy + yy) * numCols + ix;
+        Arrays.fill(image[expIndex], xyIndex, xyIndex + widthX,
+          exponentials[c]);
+      }
+    }
+  }
+
+  /** Performs the initial iterations for one full resolution curve. */
+  private void iteratePixel(ICurveFitter cf, int x, int y) {
+    currentX = imageX = x;
+    currentY = imageY = y;
+    for (int i=0; i<maxIterations && alive; i++) {
+      double currRCSE = cf.getReducedChiSquaredError();
+      cf.iterate();
+      iterations.incrementAndGet();
+      double newRCSE = cf.getReducedChiSquaredError();
+      rcseCache[y][x] = newRCSE;
+      if (newRCSE < currRCSE) {
+        drawPixel(cf, x, y);
+        if (newRCSE < maxRCSE) break;
+      }
+    }
+  }
+
+  /**
+   * Performs the initial iterations for every full resolution curve of the
+   * given tile, fitting them all together.
+   *
+   * @return false if the renderer was stopped before the tile was finished
+   */
+  private boolean iterateTile(IBatchCurveFitter batch, CurveTile tile,
+    ICurveFitter[][] curves, int x0, int y0, int x1, int y1)
+  {
+    tile.clear();
+    for (int y=y0; y<y1; y++) {
+      for (int x=x0; x<x1; x++) tile.add(curves[y][x]);
+    }
+    currentX = imageX = x0;
+    currentY = imageY = y0;
+    int remaining = tile.getCount();
+    for (int i=0; i<maxIterations && remaining > 0; i++) {
+      if (!alive) return false;
+      batch.iterate(tile);
+      iterations.addAndGet(remaining);
+      // stop iterating pixels once they are good enough
+      remaining = tile.finish(maxRCSE);
+    }
+    for (int y=y0, p=0; y<y1; y++) {
+      for (int x=x0; x<x1; x++, p++) {
+        ICurveFitter cf = curves[y][x];
+        tile.store(p, cf);
+        double newRCSE = tile.getReducedChiSquaredError(p);
+        if (newRCSE < rcseCache[y][x]) drawPixel(cf, x, y);
+        rcseCache[y][x] = newRCSE;
+      }
+    }
+    return true;
+  }
+
+  /** Updates the lifetime image with the given curve's current estimate. */
+  private void drawPixel(ICurveFitter cf, int x, int y) {
+    double[] exponentials = getExponentials(cf);
+    for (int c=0; c<numExponentials; c++) {
+      image[numExponentials - c - 1][y * numCols + x] = exponentials[c];
+    }
+  }
+
+  /** Gets the given curve's exponents in ascending order. */
+  private double[] getExponentials(ICurveFitter cf) {
+    double[][] curve = cf.getCurve();
+    double[] exponentials = new double[numExponentials];
+    for (int i=0; i<numExponentials; i++) exponentials[i] = curve[i][1];
+    Arrays.sort(exponentials);
+    return exponentials;
+  }
+
+  /** Clears the stalled flag of every pixel. Caller must hold the lock. */
+  private void clearStalled() {
+    for (int y=0; y<numRows; y++) Arrays.fill(stalled[y], false);
+    stallCount = 0;
+    queueStale = true;
+  }
+
+  /**
+   * Fills the queue with every unstalled, unclaimed pixel within the mask.
+   * Caller must hold the lock.
+   */
+  private void rebuildQueue() {
+    queueStale = false;
+    if (queue == null) queue = new PixelHeap(numRows * numCols);
+    else queue.clear();
+    boolean[][] m = mask;
+    for (int y=0; y<numRows; y++) {
+      for (int x=0; x<numCols; x++) {
+        if ((m == null || m[y][x]) && !stalled[y][x] && !claimed[y][x]) {
+          queue.update(y * numCols + x, rcseCache[y][x]);
+        }
+      }
+    }
+  }
+
+  /** Gets the number of rows at the given subsampling level. */
+  private int levelRows(int level) {
+    int rows = numRows >> level;
+    return rows < 1 ? 1 : rows;
+  }
+
+  /** Gets the number of columns at the given subsampling level. */
+  private int levelCols(int level) {
+    int cols = numCols >> level;
+    return cols < 1 ? 1 : cols;
+  }
+
+}
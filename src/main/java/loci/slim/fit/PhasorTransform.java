@@ -0,0 +1,218 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes phasor (polar plot) coordinates of every histogram of a data
+ * cube, along with the lifetimes they imply.
+ *
+ * For a histogram I(t), the phasor coordinates are the normalized first
+ * Fourier coefficients g = sum(I(t) cos(wt)) / sum(I(t)) and
+ * s = sum(I(t) sin(wt)) / sum(I(t)), where t counts bins from the start of
+ * the decay and the period 2*pi/w spans every time bin of the cube (divided
+ * by the harmonic). A single exponential decay with lifetime tau lies on
+ * the universal semicircle, where its phase lifetime s / (g w) and
+ * modulation lifetime sqrt(1 / (g^2 + s^2) - 1) / w agree.
+ *
+ * Each histogram is visited once, with no iteration, so the whole image is
+ * transformed in a small fraction of the time needed to fit it.
+ */
+public class PhasorTransform {
+
+  // -- Fields --
+
+  /** Data cube being transformed. */
+  protected DataCube data;
+
+  /** First bin of each decay, or -1 to start each one at its peak. */
+  protected int firstIndex;
+
+  /** Last bin of each decay. */
+  protected int lastIndex;
+
+  /** Multiple of the base frequency at which coordinates are computed. */
+  protected int harmonic;
+
+  /** Angular frequency, in radians per bin. */
+  protected double omega;
+
+  /** Phasor coordinates and lifetimes, dimensioned [channel][y * cols + x]. */
+  protected float[][] g, s, phaseLifetimes, modulationLifetimes;
+
+  // -- Constructors --
+
+  /** Creates a phasor transform of the given data at the base frequency. */
+  public PhasorTransform(DataCube data, int first, int last) {
+    this(data, first, last, 1);
+  }
+
+  /**
+   * Creates a phasor transform of the given data.
+   *
+   * @param first First bin of each decay, or -1 to start each decay at the
+   *   peak of its histogram.
+   * @param last Last bin of each decay.
+   * @param harmonic Multiple of the base frequency to use, where the period
+   *   of the base frequency spans every time bin.
+   */
+  public PhasorTransform(DataCube data, int first, int last, int harmonic) {
+    if (last >= data.getBins() || (first >= 0 && first > last)) {
+      throw new IllegalArgumentException("Invalid bin range: " +
+        first + " - " + last);
+    }
+    if (harmonic < 1) {
+      throw new IllegalArgumentException("Invalid harmonic: " + harmonic);
+    }
+    this.data = data;
+    firstIndex = first;
+    lastIndex = last;
+    this.harmonic = harmonic;
+    omega = 2 * Math.PI * harmonic / data.getBins();
+  }
+
+  // -- PhasorTransform methods --
+
+  /**
+   * Transforms every histogram in a single pass over the data, spreading
+   * rows of all channels across the given number of threads.
+   */
+  public void compute(int threads) {
+    final int channels = data.getChannels();
+    final int rows = data.getRows();
+    final int cols = data.getCols();
+    final int bins = data.getBins();
+    final float[][] gs = new float[channels][rows * cols];
+    final float[][] ss = new float[channels][rows * cols];
+    final float[][] taus = new float[channels][rows * cols];
+    final float[][] mods = new float[channels][rows * cols];
+
+    // sample the harmonics once, for all histograms
+    final double[] cos = new double[bins];
+    final double[] sin = new double[bins];
+    for (int t=0; t<bins; t++) {
+      cos[t] = Math.cos(omega * t);
+      sin[t] = Math.sin(omega * t);
+    }
+
+    final AtomicInteger nextRow = new AtomicInteger();
+    Workers.runPooled(new Runnable() {
+      public void run() {
+        int[] curve = new int[bins];
+        while (true) {
+          int row = nextRow.getAndIncrement();
+          if (row >= channels * rows) break;
+          int c = row / rows, y = row % rows;
+          for (int x=0; x<cols; x++) {
+            data.getCurve(c, y, x, curve);
+            int index = y * cols + x;
+            transform(curve, cos, sin, index,
+              gs[c], ss[c], taus[c], mods[c]);
+          }
+        }
+      }
+    }, threads);
+
+    g = gs;
+    s = ss;
+    phaseLifetimes = taus;
+    modulationLifetimes = mods;
+  }
+
+  /** Gets the data cube being transformed. */
+  public DataCube getData() { return data; }
+
+  /** Gets the angular frequency of the transform, in radians per bin. */
+  public double getOmega() { return omega; }
+
+  /** Gets the multiple of the base frequency used. */
+  public int getHarmonic() { return harmonic; }
+
+  /**
+   * Gets the g (cosine) coordinates of the given channel, indexed by
+   * y * cols + x, or null if the transform has not been computed.
+   */
+  public float[] getG(int c) { return g == null ? null : g[c]; }
+
+  /**
+   * Gets the s (sine) coordinates of the given channel, indexed by
+   * y * cols + x, or null if the transform has not been computed.
+   */
+  public float[] getS(int c) { return s == null ? null : s[c]; }
+
+  /**
+   * Gets the phase lifetimes, in bins, of the given channel, indexed by
+   * y * cols + x, or null if the transform has not been computed. Pixels
+   * with no counts have a lifetime of NaN.
+   */
+  public float[] getPhaseLifetimes(int c) {
+    return phaseLifetimes == null ? null : phaseLifetimes[c];
+  }
+
+  /**
+   * Gets the modulation lifetimes, in bins, of the given channel, indexed
+   * by y * cols + x, or null if the transform has not been computed. Pixels
+   * with no counts have a lifetime of NaN.
+   */
+  public float[] getModulationLifetimes(int c) {
+    return modulationLifetimes == null ? null : modulationLifetimes[c];
+  }
+
+  // -- Helper methods --
+
+  /** Transforms one histogram, storing the results at the given index. */
+  private void transform(int[] curve, double[] cos, double[] sin,
+    int index, float[] gs, float[] ss, float[] taus, float[] mods)
+  {
+    int first = firstIndex;
+    if (first < 0) {
+      // start the decay at the peak of the histogram
+      first = 0;
+      for (int t=1; t<=lastIndex; t++) {
+        if (curve[t] > curve[first]) first = t;
+      }
+    }
+    double sum = 0, gSum = 0, sSum = 0;
+    for (int t=first, i=0; t<=lastIndex; t++, i++) {
+      double v = curve[t];
+      sum += v;
+      gSum += v * cos[i];
+      sSum += v * sin[i];
+    }
+    if (sum == 0) {
+      gs[index] = ss[index] = 0;
+      taus[index] = mods[index] = Float.NaN;
+      return;
+    }
+    double gv = gSum / sum, sv = sSum / sum;
+    gs[index] = (float) gv;
+    ss[index] = (float) sv;
+    taus[index] = (float) (sv / (gv * omega));
+    double m2 = gv * gv + sv * sv;
+    mods[index] = (float) (Math.sqrt(1 / m2 - 1) / omega);
+  }
+
+}
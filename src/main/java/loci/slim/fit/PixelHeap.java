@@ -0,0 +1,181 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+/**
+ * An indexed binary max-heap of pixels, keyed by a double value such as
+ * reduced chi-squared error. Each pixel is identified by an index from
+ * zero to one less than the heap's capacity, typically y * width + x, and
+ * appears at most once. Any pixel's key can be changed, and any pixel
+ * removed, in O(log n) time.
+ *
+ * PixelHeap is not thread safe; callers must synchronize access
+ * themselves.
+ */
+public class PixelHeap {
+
+  // -- Fields --
+
+  /** Pixel indices, in heap order. */
+  protected int[] heap;
+
+  /** Position of each pixel in the heap, or -1 if absent. */
+  protected int[] pos;
+
+  /** Key of each pixel, valid only while the pixel is in the heap. */
+  protected double[] keys;
+
+  /** Number of pixels in the heap. */
+  protected int size;
+
+  // -- Constructor --
+
+  /** Creates an empty heap for pixel indices below the given capacity. */
+  public PixelHeap(int capacity) {
+    heap = new int[capacity];
+    pos = new int[capacity];
+    keys = new double[capacity];
+    for (int i=0; i<capacity; i++) pos[i] = -1;
+  }
+
+  // -- PixelHeap methods --
+
+  /** Gets the number of pixels in the heap. */
+  public int size() { return size; }
+
+  /** Gets whether the heap is empty. */
+  public boolean isEmpty() { return size == 0; }
+
+  /** Gets whether the given pixel is in the heap. */
+  public boolean contains(int index) { return pos[index] >= 0; }
+
+  /**
+   * Inserts the given pixel with the specified key, or changes its key if
+   * it is already in the heap.
+   */
+  public void update(int index, double key) {
+    int p = pos[index];
+    if (p < 0) {
+      p = size++;
+      heap[p] = index;
+      pos[index] = p;
+      keys[index] = key;
+      siftUp(p);
+    }
+    else {
+      double old = keys[index];
+      keys[index] = key;
+      if (key > old) siftUp(p);
+      else if (key < old) siftDown(p);
+    }
+  }
+
+  /** Removes the given pixel from the heap, if present. */
+  public void remove(int index) {
+    int p = pos[index];
+    if (p < 0) return;
+    pos[index] = -1;
+    size--;
+    if (p == size) return;
+    // move the last pixel into the hole, then restore heap order
+    int last = heap[size];
+    heap[p] = last;
+    pos[last] = p;
+    siftUp(p);
+    siftDown(pos[last]);
+  }
+
+  /** Gets the pixel with the largest key, or -1 if the heap is empty. */
+  public int peek() { return size == 0 ? -1 : heap[0]; }
+
+  /**
+   * Gets the largest key in the heap.
+   *
+   * @throws IllegalStateException if the heap is empty
+   */
+  public double peekKey() {
+    if (size == 0) throw new IllegalStateException("Heap is empty");
+    return keys[heap[0]];
+  }
+
+  /**
+   * Removes and returns the pixel with the largest key, or -1 if the heap
+   * is empty.
+   */
+  public int poll() {
+    if (size == 0) return -1;
+    int top = heap[0];
+    remove(top);
+    return top;
+  }
+
+  /** Gets the key of the given pixel, which must be in the heap. */
+  public double getKey(int index) { return keys[index]; }
+
+  /** Removes every pixel from the heap. */
+  public void clear() {
+    for (int i=0; i<size; i++) pos[heap[i]] = -1;
+    size = 0;
+  }
+
+  // -- Helper methods --
+
+  private void siftUp(int p) {
+    int index = heap[p];
+    double key = keys[index];
+    while (p > 0) {
+      int parent = (p - 1) >> 1;
+      int pi = heap[parent];
+      if (keys[pi] >= key) break;
+      heap[p] = pi;
+      pos[pi] = p;
+      p = parent;
+    }
+    heap[p] = index;
+    pos[index] = p;
+  }
+
+  private void siftDown(int p) {
+    int index = heap[p];
+    double key = keys[index];
+    int half = size >> 1;
+    while (p < half) {
+      int child = 2 * p + 1;
+      int ci = heap[child];
+      int right = child + 1;
+      if (right < size && keys[heap[right]] > keys[ci]) {
+        child = right;
+        ci = heap[child];
+      }
+      if (key >= keys[ci]) break;
+      heap[p] = ci;
+      pos[ci] = p;
+      p = child;
+    }
+    heap[p] = index;
+    pos[index] = p;
+  }
+
+}
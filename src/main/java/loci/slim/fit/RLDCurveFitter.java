@@ -0,0 +1,181 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+/**
+ * Rapid lifetime determination (RLD) curve fitter for sums of exponentials
+ * of the form y(t) = a1*e^(-b1*t) + ... + an*e^(-bn*t) + c.
+ *
+ * The curve is integrated over a few contiguous gates of equal width, and
+ * the parameters follow in closed form from the gate sums, in a single
+ * pass over the data. For a single exponential, three gates determine the
+ * amplitude, decay rate and offset. For two exponentials, the slow
+ * component and offset are taken from three gates over the later half of
+ * the curve, and the fast component from a weighted log-linear regression
+ * over the earlier half once the slow component is subtracted. If the
+ * data do not describe a decay, the standard estimate is used instead.
+ *
+ * The result is complete after {@link #estimate()}; iterating does not
+ * change it. This makes the fitter suited to interactive previews, and to
+ * the coarse subsampling levels of a renderer.
+ */
+public class RLDCurveFitter extends CurveFitter {
+
+  // -- Constants --
+
+  /** Minimum number of bins per gate for a meaningful determination. */
+  private static final int MIN_GATE_WIDTH = 2;
+
+  // -- Fields --
+
+  /** Number of iterations so far. */
+  protected int iterCount;
+
+  // -- Constructor --
+
+  public RLDCurveFitter() {
+    setComponentCount(1);
+  }
+
+  // -- ICurveFitter methods --
+
+  /**
+   * Does nothing but count the iteration, since the closed-form estimate
+   * cannot be refined.
+   */
+  public void iterate() {
+    iterCount++;
+  }
+
+  /* @see ICurveFitter#getIterations() */
+  public int getIterations() { return iterCount; }
+
+  /* @see ICurveFitter#estimate() */
+  public void estimate() {
+    int[] data = readData();
+    int num = lastIndex - firstIndex + 1;
+    double a1 = 0, b1 = 0, a2 = 0, b2 = 0, c = 0;
+    boolean valid;
+    if (components == 1) {
+      // a1*e^(-b1*t) + c, from three gates spanning the curve
+      int w = num / 3;
+      valid = w >= MIN_GATE_WIDTH;
+      if (valid) {
+        double d0 = gate(data, firstIndex, w);
+        double d1 = gate(data, firstIndex + w, w);
+        double d2 = gate(data, firstIndex + 2 * w, w);
+        double q = (d1 - d2) / (d0 - d1);
+        valid = q > 0 && q < 1;
+        if (valid) {
+          b1 = -Math.log(q) / w;
+          double s = gateSum(b1, q);
+          a1 = (d0 - d1) / (s * (1 - q));
+          c = (d0 - a1 * s) / w;
+        }
+      }
+    }
+    else {
+      // slow component and offset from three gates over the later half
+      int half = num / 2;
+      int w = (num - half) / 3;
+      valid = half >= 2 * MIN_GATE_WIDTH && w >= MIN_GATE_WIDTH;
+      if (valid) {
+        int t0 = firstIndex + half;
+        double d0 = gate(data, t0, w);
+        double d1 = gate(data, t0 + w, w);
+        double d2 = gate(data, t0 + 2 * w, w);
+        double q = (d1 - d2) / (d0 - d1);
+        valid = q > 0 && q < 1;
+        if (valid) {
+          b2 = -Math.log(q) / w;
+          double s = gateSum(b2, q);
+          double a = (d0 - d1) / (s * (1 - q));
+          c = (d0 - a * s) / w;
+          a2 = a * Math.exp(b2 * half);
+        }
+      }
+      if (valid) {
+        // fast component by log-linear regression over the earlier half,
+        // once the slow component and offset are subtracted; each point is
+        // weighted by its counts, since the variance of ln(y) is about 1/y
+        double sw = 0, sx = 0, sy = 0, sxx = 0, sxy = 0;
+        double e = 1, decay = Math.exp(-b2);
+        for (int i=0; i<half; i++) {
+          int o = data[firstIndex + i];
+          double r = o - a2 * e - c;
+          e *= decay;
+          // skip points where the fast component is lost in the noise
+          if (r <= 2 * Math.sqrt(o)) continue;
+          double y = Math.log(r);
+          sw += r;
+          sx += r * i;
+          sy += r * y;
+          sxx += r * i * i;
+          sxy += r * i * y;
+        }
+        double den = sw * sxx - sx * sx;
+        valid = den > 0;
+        if (valid) {
+          double slope = (sw * sxy - sx * sy) / den;
+          b1 = -slope;
+          a1 = Math.exp((sy - slope * sx) / sw);
+          valid = b1 > b2;
+        }
+      }
+    }
+    if (!valid || a1 != a1 || c != c) {
+      super.estimate();
+      return;
+    }
+
+    if (!curveFixed[0][0]) curveEstimate[0][0] = a1;
+    if (!curveFixed[0][1]) curveEstimate[0][1] = b1;
+    if (!curveFixed[0][2]) curveEstimate[0][2] = c;
+    if (components > 1) {
+      if (!curveFixed[1][0]) curveEstimate[1][0] = a2;
+      if (!curveFixed[1][1]) curveEstimate[1][1] = b2;
+      if (!curveFixed[1][2]) curveEstimate[1][2] = 0;
+    }
+    invalidateError();
+  }
+
+  // -- Helper methods --
+
+  /** Sums the data over the given number of bins, starting at start. */
+  private static double gate(int[] data, int start, int width) {
+    double sum = 0;
+    for (int i=start; i<start+width; i++) sum += data[i];
+    return sum;
+  }
+
+  /**
+   * Computes the sum of e^(-b*t) over one gate, from t = 0 to one less than
+   * the gate width, given q = e^(-b*width).
+   */
+  private static double gateSum(double b, double q) {
+    return (1 - q) / (1 - Math.exp(-b));
+  }
+
+}
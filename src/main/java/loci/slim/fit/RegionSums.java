@@ -0,0 +1,198 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Summed photon histograms of the pixels within a region of interest, for
+ * every spectral channel of a {@link DataCube}. Each pixel's histogram is
+ * read in one contiguous run, rather than striding through the whole cube
+ * once per time bin, and channels (or, when there are few channels, bands
+ * of rows) are summed in parallel.
+ *
+ * The current region is remembered, so that when it changes only the
+ * pixels entering or leaving it are added or subtracted, as long as that
+ * is less work than summing the new region from scratch.
+ */
+public class RegionSums {
+
+  // -- Constants --
+
+  /**
+   * Minimum number of curves to add or subtract, across all channels, for
+   * a change of region to be worth spreading over several threads.
+   */
+  private static final int MIN_PARALLEL_CURVES = 1024;
+
+  // -- Fields --
+
+  /** Data being summed. */
+  protected DataCube data;
+
+  protected int channels, rows, cols, bins;
+
+  /** Summed histogram of each channel, dimensioned [channel][bin]. */
+  protected int[][] sums;
+
+  /** Number of pixels within the region. */
+  protected int count;
+
+  /** Which pixels are within the region, dimensioned [row][column]. */
+  protected boolean[][] region;
+
+  // -- Constructor --
+
+  /** Constructs region sums for the given data, initially empty. */
+  public RegionSums(DataCube data) {
+    this.data = data;
+    channels = data.getChannels();
+    rows = data.getRows();
+    cols = data.getCols();
+    bins = data.getBins();
+    sums = new int[channels][bins];
+    region = new boolean[rows][cols];
+  }
+
+  // -- RegionSums methods --
+
+  /** Sets the region to the single given pixel. */
+  public void setPixel(int x, int y) {
+    for (int c=0; c<channels; c++) data.getCurve(c, y, x, sums[c]);
+    for (int yy=0; yy<rows; yy++) Arrays.fill(region[yy], false);
+    region[y][x] = true;
+    count = 1;
+  }
+
+  /**
+   * Sets the region to every pixel within the given mask, summing with
+   * up to the given number of threads. Only the difference from the
+   * previous region is summed, if that is smaller than the new region.
+   */
+  public void setRegion(boolean[][] mask, int threads) {
+    int n = 0, changes = 0;
+    for (int y=0; y<rows; y++) {
+      boolean[] maskRow = mask[y], regionRow = region[y];
+      for (int x=0; x<cols; x++) {
+        if (maskRow[x]) n++;
+        if (maskRow[x] != regionRow[x]) changes++;
+      }
+    }
+    if (changes >= n) sumRegion(mask, threads);
+    else if (changes > 0) {
+      // encode each changed pixel as its index, negated if it is leaving
+      int[] changed = new int[changes];
+      for (int y=0, i=0; y<rows; y++) {
+        boolean[] maskRow = mask[y], regionRow = region[y];
+        for (int x=0; x<cols; x++) {
+          if (maskRow[x] == regionRow[x]) continue;
+          int index = y * cols + x;
+          changed[i++] = maskRow[x] ? index : -index - 1;
+        }
+      }
+      updateRegion(changed, threads);
+    }
+    for (int y=0; y<rows; y++) {
+      System.arraycopy(mask[y], 0, region[y], 0, cols);
+    }
+    count = n;
+  }
+
+  /**
+   * Gets the summed histogram of the given channel. The array is reused,
+   * and changes whenever the region does.
+   */
+  public int[] getSums(int c) { return sums[c]; }
+
+  /** Gets the number of pixels within the region. */
+  public int getCount() { return count; }
+
+  // -- Helper methods --
+
+  /** Sums every pixel within the given mask from scratch. */
+  private void sumRegion(final boolean[][] mask, int threads) {
+    // split each channel into bands of rows, if there are spare threads
+    final int bands = Math.max(1, Math.min(rows, threads / channels));
+    final int tasks = channels * bands;
+    final int[][] partial = new int[tasks][];
+    final AtomicInteger next = new AtomicInteger();
+    Workers.runPooled(new Runnable() {
+      public void run() {
+        while (true) {
+          int task = next.getAndIncrement();
+          if (task >= tasks) break;
+          int c = task / bands, band = task % bands;
+          int[] sum = new int[bins];
+          int y1 = rows * (band + 1) / bands;
+          for (int y=rows * band / bands; y<y1; y++) {
+            boolean[] maskRow = mask[y];
+            for (int x=0; x<cols; x++) {
+              if (maskRow[x]) data.addCurve(c, y, x, sum);
+            }
+          }
+          partial[task] = sum;
+        }
+      }
+    }, Math.min(threads, tasks));
+
+    for (int c=0; c<channels; c++) {
+      int[] sum = sums[c];
+      System.arraycopy(partial[c * bands], 0, sum, 0, bins);
+      for (int band=1; band<bands; band++) {
+        int[] part = partial[c * bands + band];
+        for (int t=0; t<bins; t++) sum[t] += part[t];
+      }
+    }
+  }
+
+  /**
+   * Adds or subtracts the given changed pixels, encoded as by
+   * {@link #setRegion}, to or from the sums of every channel. Small changes,
+   * such as those made while dragging, are applied on the calling thread.
+   */
+  private void updateRegion(final int[] changed, int threads) {
+    if (changed.length * channels < MIN_PARALLEL_CURVES) threads = 1;
+    final AtomicInteger next = new AtomicInteger();
+    Workers.runPooled(new Runnable() {
+      public void run() {
+        while (true) {
+          int c = next.getAndIncrement();
+          if (c >= channels) break;
+          int[] sum = sums[c];
+          for (int i=0; i<changed.length; i++) {
+            int index = changed[i];
+            if (index >= 0) data.addCurve(c, index / cols, index % cols, sum);
+            else {
+              index = -index - 1;
+              data.subtractCurve(c, index / cols, index % cols, sum);
+            }
+          }
+        }
+      }
+    }, Math.min(threads, channels));
+  }
+
+}
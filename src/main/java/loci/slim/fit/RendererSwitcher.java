@@ -28,15 +28,27 @@ package loci.slim.fit;
  * Renderer manager capable of switching between multiple renderers.
  * Used primarily to switch between lifetime computation in multiple channels.
  *
+ * By default, only the current renderer runs, and switching stops it so that
+ * the newly current one can run instead. In concurrent mode, every renderer
+ * runs at once, sharing a {@link ThreadBudget} in which the current renderer
+ * takes priority; switching then changes only the priorities.
+ *
  * @author Curtis Rueden
  */
 public class RendererSwitcher implements ICurveRenderer {
 
+  // -- Constants --
+
+  /** Milliseconds between checks on concurrently running renderers. */
+  private static final int JOIN_POLL = 100;
+
   // -- Fields --
 
   protected ICurveRenderer[] renderers;
   protected int c;
   protected boolean alive;
+  protected boolean concurrent;
+  protected ThreadBudget budget;
 
   // -- Constructor --
 
@@ -50,9 +62,36 @@ public class RendererSwitcher implements ICurveRenderer {
     if (current == c) return;
     int lastC = c;
     c = current;
-    renderers[lastC].stop();
+    if (concurrent) {
+      setPriority(renderers[lastC], false);
+      setPriority(renderers[c], true);
+    }
+    else renderers[lastC].stop();
+  }
+
+  /**
+   * Sets whether all renderers run at once, sharing a thread budget, rather
+   * than only the current one. Renderers that do not extend
+   * {@link CurveRenderer} run without regard to the budget. Takes effect
+   * the next time the switcher is run.
+   */
+  public void setConcurrent(boolean concurrent) {
+    this.concurrent = concurrent;
   }
 
+  /** Gets whether all renderers run at once. */
+  public boolean isConcurrent() { return concurrent; }
+
+  /**
+   * Sets the thread budget shared by the renderers in concurrent mode.
+   * If null, a budget with one permit per processor is used. Takes effect
+   * the next time the switcher is run.
+   */
+  public void setThreadBudget(ThreadBudget budget) { this.budget = budget; }
+
+  /** Gets the thread budget shared by the renderers in concurrent mode. */
+  public ThreadBudget getThreadBudget() { return budget; }
+
   public ICurveRenderer[] getCurveRenderers() {
     return renderers;
   }
@@ -71,12 +110,16 @@ public class RendererSwitcher implements ICurveRenderer {
 
   public void run() {
     alive = true;
-    while (alive) renderers[c].run();
+    if (concurrent) runConcurrent();
+    else while (alive) renderers[c].run();
   }
 
   public void stop() {
     alive = false;
-    renderers[c].stop();
+    if (concurrent) {
+      for (int i=0; i<renderers.length; i++) renderers[i].stop();
+    }
+    else renderers[c].stop();
   }
 
   public int getCurrentIterations() {
@@ -149,7 +192,7 @@ public class RendererSwitcher implements ICurveRenderer {
 
   public void setMask(boolean[][] mask) {
     for (int i=0; i<renderers.length; i++) {
-      renderers[c].setMask(mask);
+      renderers[i].setMask(mask);
     }
   }
 
@@ -173,4 +216,45 @@ public class RendererSwitcher implements ICurveRenderer {
     return renderers[c].getWorstRCSE();
   }
 
+  // -- Helper methods --
+
+  /**
+   * Runs every renderer on its own thread under a shared thread budget,
+   * until the switcher is stopped.
+   */
+  private void runConcurrent() {
+    ThreadBudget b = budget == null ? new ThreadBudget() : budget;
+    Thread caller = Thread.currentThread();
+    Thread[] threads = new Thread[renderers.length];
+    for (int i=0; i<renderers.length; i++) {
+      if (renderers[i] instanceof CurveRenderer) {
+        ((CurveRenderer) renderers[i]).setThreadBudget(b);
+      }
+      setPriority(renderers[i], i == c);
+      threads[i] = new Thread(renderers[i], caller.getName() + "-" + i);
+      threads[i].setPriority(caller.getPriority());
+      threads[i].start();
+    }
+    for (int i=0; i<threads.length; i++) {
+      while (threads[i].isAlive()) {
+        // a renderer that had not yet started may have missed the stop
+        if (!alive) renderers[i].stop();
+        try { threads[i].join(JOIN_POLL); }
+        catch (InterruptedException exc) { stop(); }
+      }
+    }
+    for (int i=0; i<renderers.length; i++) {
+      if (renderers[i] instanceof CurveRenderer) {
+        ((CurveRenderer) renderers[i]).setThreadBudget(null);
+      }
+    }
+  }
+
+  /** Sets the priority of the given renderer, if it supports priorities. */
+  private static void setPriority(ICurveRenderer renderer, boolean priority) {
+    if (renderer instanceof CurveRenderer) {
+      ((CurveRenderer) renderer).setPriority(priority);
+    }
+  }
+
 }
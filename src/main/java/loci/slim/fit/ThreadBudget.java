@@ -0,0 +1,269 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A budget of threads shared among several curve renderers, so that they
+ * can run concurrently without oversubscribing the processors. A renderer
+ * acquires a permit before a batch of work and releases it afterward.
+ *
+ * Requests are either prioritized or not. While both kinds are waiting,
+ * prioritized requests receive a fixed number of permits for each one
+ * granted to an unprioritized request, so that background work slows down
+ * without stopping altogether. Each released permit is handed directly to
+ * a single waiting request, which is woken to take it, rather than waking
+ * every waiting thread to compete for it.
+ */
+public class ThreadBudget {
+
+  // -- Constants --
+
+  /** Default number of prioritized grants per unprioritized grant. */
+  public static final int DEFAULT_PRIORITY_WEIGHT = 4;
+
+  // -- Fields --
+
+  /** Total number of permits. */
+  protected int permits;
+
+  /** Number of permits not currently held. */
+  protected int available;
+
+  /** Number of prioritized grants per unprioritized grant. */
+  protected int weight;
+
+  /** Number of prioritized and unprioritized requests waiting. */
+  protected int priorityWaiting, plainWaiting;
+
+  /** Number of prioritized and unprioritized requests handed a permit. */
+  protected int priorityHanded, plainHanded;
+
+  /** Number of prioritized grants since the last unprioritized grant. */
+  protected int priorityGrants;
+
+  /** Number of members sharing the budget. */
+  protected int members;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition priorityReady = lock.newCondition();
+  private final Condition plainReady = lock.newCondition();
+
+  // -- Constructors --
+
+  /** Creates a budget with one permit per available processor. */
+  public ThreadBudget() {
+    this(Workers.getDefaultThreadCount(), DEFAULT_PRIORITY_WEIGHT);
+  }
+
+  /**
+   * Creates a budget with the given number of permits.
+   *
+   * @param weight Number of permits granted to prioritized requests for
+   *   each one granted to an unprioritized request, while both are waiting.
+   */
+  public ThreadBudget(int permits, int weight) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("Invalid permit count: " + permits);
+    }
+    if (weight < 1) {
+      throw new IllegalArgumentException("Invalid weight: " + weight);
+    }
+    this.permits = available = permits;
+    this.weight = weight;
+  }
+
+  // -- ThreadBudget methods --
+
+  /**
+   * Acquires a permit, waiting at most the given number of milliseconds.
+   *
+   * @return true if a permit was acquired; false if the wait timed out or
+   *   the thread was interrupted, in which case its interrupt status is
+   *   set again
+   */
+  public boolean acquire(boolean priority, long timeout) {
+    long left = TimeUnit.MILLISECONDS.toNanos(timeout);
+    Condition ready = priority ? priorityReady : plainReady;
+    lock.lock();
+    try {
+      if (grantable(priority)) {
+        grant(priority);
+        return true;
+      }
+      if (priority) priorityWaiting++;
+      else plainWaiting++;
+      boolean interrupted = false;
+      try {
+        while (getHanded(priority) == 0 && left > 0) {
+          left = ready.awaitNanos(left);
+        }
+      }
+      catch (InterruptedException exc) {
+        interrupted = true;
+      }
+      finally {
+        if (priority) priorityWaiting--;
+        else plainWaiting--;
+      }
+      if (getHanded(priority) == 0) {
+        if (interrupted) Thread.currentThread().interrupt();
+        return false;
+      }
+      if (priority) priorityHanded--;
+      else plainHanded--;
+      if (interrupted) {
+        // pass the permit on to another request
+        Thread.currentThread().interrupt();
+        available++;
+        handOff();
+        return false;
+      }
+      return true;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /** Releases a permit acquired earlier. */
+  public void release() {
+    lock.lock();
+    try {
+      available++;
+      handOff();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /** Gets the number of permits not currently held. */
+  public int getAvailable() {
+    lock.lock();
+    try {
+      return available;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /** Gets the total number of permits. */
+  public int getPermits() { return permits; }
+
+  /**
+   * Registers a member sharing the budget, such as a renderer, so that
+   * {@link #getShare(boolean)} can divide the permits among the members.
+   */
+  public void addMember() {
+    lock.lock();
+    try {
+      members++;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /** Unregisters a member registered by {@link #addMember()}. */
+  public void removeMember() {
+    lock.lock();
+    try {
+      if (members > 0) members--;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the number of permits a member making requests of the given kind
+   * can expect to hold at once while the other members are busy, assuming
+   * only one member takes priority. A member running more threads than
+   * this only adds contention.
+   */
+  public int getShare(boolean priority) {
+    lock.lock();
+    try {
+      int others = members - 1;
+      if (others <= 0) return permits;
+      if (priority) return (permits * weight + weight) / (weight + 1);
+      int plain = (weight + 1) * others;
+      return Math.max(1, (permits + plain - 1) / plain);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  // -- Helper methods --
+
+  /**
+   * Gets whether a new request of the given kind may take a permit now,
+   * ahead of any waiting requests not yet handed one.
+   */
+  private boolean grantable(boolean priority) {
+    if (available == 0) return false;
+    if (priority) {
+      // yield to background work once the prioritized share is used up
+      return plainWaiting == plainHanded || priorityGrants < weight;
+    }
+    return priorityWaiting == priorityHanded || priorityGrants >= weight;
+  }
+
+  /** Takes a permit for a request of the given kind. */
+  private void grant(boolean priority) {
+    available--;
+    if (priority) priorityGrants++;
+    else priorityGrants = 0;
+  }
+
+  /** Gets the number of permits handed to waiting requests of a kind. */
+  private int getHanded(boolean priority) {
+    return priority ? priorityHanded : plainHanded;
+  }
+
+  /** Hands free permits to waiting requests, waking one for each. */
+  private void handOff() {
+    while (true) {
+      if (priorityWaiting > priorityHanded && grantable(true)) {
+        grant(true);
+        priorityHanded++;
+        priorityReady.signal();
+      }
+      else if (plainWaiting > plainHanded && grantable(false)) {
+        grant(false);
+        plainHanded++;
+        plainReady.signal();
+      }
+      else break;
+    }
+  }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * #%L
+ * SLIM Plotter application and curve fitting library for
+ * combined spectral lifetime visualization and analysis.
+ * %%
+ * Copyright (C) 2006 - 2014 Board of Regents of the University of
+ * Wisconsin-Madison.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package loci.slim.fit;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Utility methods for running a task on several threads at once.
+ */
+public final class Workers {
+
+  // -- Static fields --
+
+  /** Shared pool of daemon threads, created on first use. */
+  private static ExecutorService pool;
+
+  // -- Constructor --
+
+  private Workers() { }
+
+  // -- Utility methods --
+
+  /** Gets the default number of worker threads to use. */
+  public static int getDefaultThreadCount() {
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Executes the given task on the specified number of threads, using the
+   * calling thread as one of them, and waits for all of them to finish.
+   * The task is responsible for dividing the work among its invocations,
+   * typically by claiming work items from a shared counter.
+   *
+   * @throws RuntimeException if the task threw one on any thread, after all
+   *   threads have finished
+   */
+  public static void run(Runnable task, int threads) {
+    Thread caller = Thread.currentThread();
+    Thread[] workers = new Thread[Math.max(threads, 1) - 1];
+    final Throwable[] failure = new Throwable[1];
+    final Runnable work = task;
+    Runnable guarded = new Runnable() {
+      public void run() {
+        try { work.run(); }
+        catch (Throwable t) {
+          synchronized (failure) {
+            if (failure[0] == null) failure[0] = t;
+          }
+        }
+      }
+    };
+    for (int i=0; i<workers.length; i++) {
+      workers[i] = new Thread(guarded, caller.getName() + "-" + (i + 1));
+      workers[i].setPriority(caller.getPriority());
+      workers[i].start();
+    }
+    guarded.run();
+    boolean interrupted = false;
+    for (int i=0; i<workers.length; i++) {
+      try { workers[i].join(); }
+      catch (InterruptedException exc) {
+        interrupted = true;
+        i--;
+      }
+    }
+    if (interrupted) caller.interrupt();
+    Throwable t = failure[0];
+    if (t instanceof RuntimeException) throw (RuntimeException) t;
+    if (t instanceof Error) throw (Error) t;
+  }
+
+  /**
+   * Executes the given task like {@link #run(Runnable, int)}, but borrows
+   * the extra threads from a shared pool rather than starting new ones.
+   * This suits short tasks that are run many times in a row, where thread
+   * startup would otherwise dominate. Borrowed threads run the task at the
+   * calling thread's priority.
+   *
+   * @throws RuntimeException if the task threw one on any thread, after all
+   *   threads have finished
+   */
+  public static void runPooled(Runnable task, int threads) {
+    ExecutorService service = getPool();
+    Future<?>[] futures = new Future<?>[Math.max(threads, 1) - 1];
+    if (futures.length > 0) {
+      final Runnable work = task;
+      final int priority = Thread.currentThread().getPriority();
+      Runnable borrowed = new Runnable() {
+        public void run() {
+          Thread t = Thread.currentThread();
+          int p = t.getPriority();
+          t.setPriority(priority);
+          try { work.run(); }
+          finally { t.setPriority(p); }
+        }
+      };
+      for (int i=0; i<futures.length; i++) {
+        futures[i] = service.submit(borrowed);
+      }
+    }
+    Throwable failure = null;
+    try { task.run(); }
+    catch (Throwable t) { failure = t; }
+    boolean interrupted = false;
+    for (int i=0; i<futures.length; i++) {
+      try { futures[i].get(); }
+      catch (InterruptedException exc) {
+        interrupted = true;
+        i--;
+      }
+      catch (ExecutionException exc) {
+        if (failure == null) failure = exc.getCause();
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+    if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+    if (failure instanceof Error) throw (Error) failure;
+  }
+
+  /**
+   * Starts the given task on the specified number of threads from the
+   * shared pool, without waiting for them to finish. The task is
+   * responsible for reporting its own completion and any failures.
+   */
+  public static void start(Runnable task, int threads) {
+    ExecutorService service = getPool();
+    for (int i=0; i<threads; i++) service.execute(task);
+  }
+
+  // -- Helper methods --
+
+  private static synchronized ExecutorService getPool() {
+    if (pool == null) {
+      pool = Executors.newCachedThreadPool(new ThreadFactory() {
+        private int count;
+        public synchronized Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Workers-" + ++count);
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return pool;
+  }
+
+}